@@ -1,6 +1,6 @@
 /**
  *	InputStream utility based on the java.nio package.  Reads
- *	up to 32 bits at a time from a file, using multiple buffers
+ *	up to 64 bits at a time from a file, using multiple buffers
  *	to quickly process read calls.  Runtime is approximately
  *	100 times faster than previous iteration built on java.io.
  *
@@ -17,23 +17,23 @@ public class BitInputStream extends InputStream {
 	
 	private static final int BYTE_SIZE = 8;
 	private static final int INT_SIZE = 32;
+	private static final int LONG_SIZE = 64;
 	private static final int BIT_BUFFER_SIZE = 8;
-	private static final int BUFFER_SIZE = 8192;
-	
-	private static final long bitMask[] = { 0x00, 0x01, 0x03, 0x07, 0x0f, 0x1f, 0x3f, 0x7f, 0xff, 0x1ff, 0x3ff, 0x7ff,
-			0xfff, 0x1fff, 0x3fff, 0x7fff, 0xffff, 0x1ffff, 0x3ffff, 0x7ffff, 0xfffff, 0x1fffff, 0x3fffff, 0x7fffff,
-			0xffffff, 0x1ffffff, 0x3ffffff, 0x7ffffff, 0xfffffff, 0x1fffffff, 0x3fffffff, 0x7fffffff, 0xffffffffl,
-			0x1ffffffffl, 0x3ffffffffl, 0x7ffffffffl, 0xfffffffffl, 0x1fffffffffl, 0x3fffffffffl, 0x7fffffffffl,
-			0xffffffffffl, 0x1ffffffffffl, 0x3ffffffffffl, 0x7ffffffffffl, 0xfffffffffffl, 0x1fffffffffffl,
-			0x3fffffffffffl, 0x7fffffffffffl, 0xffffffffffffl, 0x1ffffffffffffl, 0x3ffffffffffffl, 0x7ffffffffffffl,
-			0xfffffffffffffl, 0x1fffffffffffffl, 0x3fffffffffffffl, 0x7fffffffffffffl, 0xffffffffffffffl,
-			0x1ffffffffffffffl, 0x3ffffffffffffffl, 0x7ffffffffffffffl, 0xfffffffffffffffl, 0x1fffffffffffffffl,
-			0x3fffffffffffffffl, 0x7fffffffffffffffl, 0xffffffffffffffffl };
+	static final int BUFFER_SIZE = 8192;
+	
+	/**
+	 * Most bytes kept for reset() by BitInputStream(InputStream), enough
+	 * for any ordinary piped file without letting one take the heap.
+	 */
+	public static final int DEFAULT_MARK_LIMIT = 1 << 24;
 	
 	private InputStream source;
 	private ReadableByteChannel input;
+	private FileChannel file;
+	private long start;
 	private ByteBuffer buffer;
-	private int bitsRead, available, limit;
+	private long bitsRead;
+	private int available, limit, markLimit;
 	private long bitBuffer;
 	
 	public BitInputStream(String filePath) {
@@ -42,7 +42,7 @@ public class BitInputStream extends InputStream {
 	
 	public BitInputStream(File fileSource) {
 		try {
-			initialize(new FileInputStream(fileSource));
+			initialize(new FileInputStream(fileSource), DEFAULT_MARK_LIMIT, null);
 		}
 		catch (FileNotFoundException fnf) {
 			throw new RuntimeException(fnf);
@@ -50,33 +50,106 @@ public class BitInputStream extends InputStream {
 	}
 	
 	public BitInputStream(InputStream in) {
-		initialize(in);
+		this(in, DEFAULT_MARK_LIMIT);
+	}
+	
+	/**
+	 * Files are reread for reset() by seeking, so they cost no memory.
+	 * Other streams, including a FileInputStream that cannot seek such
+	 * as a pipe or standard input, are marked, and everything read since the mark is
+	 * kept in memory for reset() unless the stream is one, such as a
+	 * ByteArrayInputStream, that supports mark itself. That memory is
+	 * bounded by markLimit; once more than that has been read, reset()
+	 * fails rather than keeping more.
+	 * @param in is the stream to read
+	 * @param markLimit is the most bytes kept for reset() when in is
+	 * not a file; 0 keeps none, for callers that read only once
+	 */
+	public BitInputStream(InputStream in, int markLimit) {
+		initialize(in, markLimit, null);
+	}
+	
+	/**
+	 * Like BitInputStream(in, markLimit), but reads through buffer
+	 * instead of allocating one, so a HuffContext can reuse it from
+	 * stream to stream. No two open streams may share a buffer.
+	 * @param buffer is a heap buffer of BUFFER_SIZE bytes
+	 */
+	BitInputStream(InputStream in, int markLimit, ByteBuffer buffer) {
+		initialize(in, markLimit, buffer);
 	}
 	
-	private void initialize(InputStream in) {
-		source = new BufferedInputStream(in);
-		source.mark(Integer.MAX_VALUE);
+	private void initialize(InputStream in, int markLimit, ByteBuffer reuse) {
+		this.markLimit = markLimit;
+		if (in instanceof FileInputStream) {
+			FileChannel channel = ((FileInputStream) in).getChannel();
+			try {
+				start = channel.position();
+				file = channel;
+			}
+			catch (IOException notSeekable) {
+				// a pipe or FIFO, read it like any other stream
+			}
+		}
+		if (file != null) {
+			source = in;
+			input = file;
+		}
+		else {
+			// with no mark limit nothing is kept, so no BufferedInputStream
+			source = in.markSupported() || markLimit == 0 ? in : new BufferedInputStream(in);
+			if (markLimit > 0) {
+				source.mark(markLimit);
+			}
+			input = channel(source);
+		}
 		bitsRead = available = 0;
 		bitBuffer = 0;
 		limit = BUFFER_SIZE;
-		input = Channels.newChannel(source);
-		buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		buffer = reuse != null ? reuse : ByteBuffer.allocate(BUFFER_SIZE);
+		buffer.clear();
 		buffer.position(BUFFER_SIZE);
 	}
 	
-	public int bitsRead() {
+	public long bitsRead() {
 		return bitsRead;
 	}
 	
+	/**
+	 * Returns the number of bits consumed so far. Unlike bitsRead(),
+	 * bits loaded into the read buffer but not yet returned or skipped
+	 * are not counted.
+	 * @return offset in bits of the next bit to be read
+	 */
+	public long bitPosition() {
+		return bitsRead - (long) BYTE_SIZE * buffer.remaining() - available;
+	}
+	
+	/**
+	 * Go back to the start of the stream so it can be read again.
+	 * @throws HuffException if the stream was not marked or more was
+	 * read than its mark limit, e.g. a pipe longer than
+	 * DEFAULT_MARK_LIMIT given to a two-pass compress
+	 */
 	public void reset() {
 		try {
-			source.reset();
-			source.mark(Integer.MAX_VALUE);
+			if (file != null) {
+				file.position(start);
+			}
+			else {
+				try {
+					source.reset();
+				}
+				catch (IOException io) {
+					throw new HuffException("cannot reread input past its mark limit of "
+							+ markLimit + " bytes: " + io.getMessage());
+				}
+			}
 			bitsRead = available = 0;
 			bitBuffer = 0;
 			limit = BUFFER_SIZE;
-			input = Channels.newChannel(source);
-			buffer = ByteBuffer.allocate(BUFFER_SIZE);
+			// channel and buffer are reused, reset() does not allocate
+			buffer.clear();
 			buffer.position(BUFFER_SIZE);
 		}
 		catch (IOException io) {
@@ -104,40 +177,214 @@ public class BitInputStream extends InputStream {
 		if (numBits > INT_SIZE || numBits < 1) {
 			throw new RuntimeException("Illegal argument: numBits must be on [1, 32]");
 		}
-			
-		int value = 0;
-		
+		return (int) take(numBits);
+	}
+	
+	/**
+	 * Reads up to 64 bits at a time.
+	 * @param numBits is number of bits to read, on [1, 64]
+	 * @return the bits read, or -1 if fewer than numBits are left. When
+	 * numBits is 64, -1 is also a legal value, so callers reading whole
+	 * longs should know from elsewhere (e.g., a length header) that
+	 * enough bits remain.
+	 */
+	public long readLong(int numBits) {
+		if (numBits > LONG_SIZE || numBits < 1) {
+			throw new RuntimeException("Illegal argument: numBits must be on [1, 64]");
+		}
+		if (numBits <= INT_SIZE) {
+			return take(numBits);
+		}
+		long high = take(numBits - INT_SIZE);
+		if (high < 0) {
+			return -1;
+		}
+		long low = take(INT_SIZE);
+		if (low < 0) {
+			return -1;
+		}
+		return (high << INT_SIZE) | low;
+	}
+	
+	/**
+	 * Returns the next numBits bits without consuming them. Bits past
+	 * the end of the stream read as zeros, so callers decoding with a
+	 * lookup table can peek a full table index near the end of input.
+	 * @param numBits is number of bits to look at, on [1, 32]
+	 * @return the bits, or -1 if no bits at all are left
+	 */
+	public int peekBits(int numBits) {
+		if (numBits > INT_SIZE || numBits < 1) {
+			throw new RuntimeException("Illegal argument: numBits must be on [1, 32]");
+		}
 		if (numBits > available) {
-			value = (int) bitBuffer;
-			numBits -= available;
-			value <<= numBits;
-			if (!fillBitBuffer()) {
+			pullBytes(numBits);
+			if (available == 0) {
 				return -1;
 			}
+			if (numBits > available) {
+				return (int) (bitBuffer << (numBits - available));
+			}
+		}
+		return (int) (bitBuffer >>> (available - numBits));
+	}
+	
+	/**
+	 * Consumes numBits bits, typically after peekBits.
+	 * @param numBits is number of bits to skip, on [1, 32]
+	 * @return false if fewer than numBits were left, in which case
+	 * the stream is now exhausted
+	 */
+	public boolean skipBits(int numBits) {
+		if (numBits > INT_SIZE || numBits < 1) {
+			throw new RuntimeException("Illegal argument: numBits must be on [1, 32]");
+		}
+		if (take(numBits) < 0) {
+			available = 0;
+			bitBuffer = 0;
+			return false;
+		}
+		return true;
+	}
+	
+	/**
+	 * Discards bits up to the next byte boundary, e.g. the padding
+	 * BitOutputStream.close writes after the last bit of a file.
+	 */
+	public void alignToByte() {
+		available -= available % BYTE_SIZE;
+		if (available < LONG_SIZE) {
+			bitBuffer &= (1L << available) - 1;
+		}
+	}
+
+	/**
+	 * Reads whole bytes into dest. When the stream is at a byte boundary
+	 * the bytes are copied straight from the read buffer (or the
+	 * underlying channel for large requests) without going through
+	 * the bit buffer; otherwise they are read 8 bits at a time.
+	 * @param dest is where bytes are stored
+	 * @param offset is index in dest of first byte stored
+	 * @param length is maximum number of bytes read
+	 * @return number of bytes read, less than length only at end of
+	 * stream, or -1 if the stream was already exhausted
+	 */
+	public int readBytes(byte[] dest, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > dest.length) {
+			throw new IndexOutOfBoundsException("offset " + offset + ", length " + length);
+		}
+		int done = 0;
+		if (available % BYTE_SIZE != 0) {
+			while (done < length) {
+				int value = readBits(BYTE_SIZE);
+				if (value == -1) break;
+				dest[offset + done++] = (byte) value;
+			}
+			return done == 0 && length > 0 ? -1 : done;
 		}
 		
-		if (numBits > available) {
-			return -1;
+		// drain whole bytes already in the bit buffer
+		while (done < length && available > 0) {
+			available -= BYTE_SIZE;
+			dest[offset + done++] = (byte) (bitBuffer >>> available);
 		}
+		if (available < LONG_SIZE) {
+			bitBuffer &= (1L << available) - 1;
+		}
+		
+		// then whatever is left in the read buffer
+		int buffered = Math.min(length - done, Math.max(0, limit - buffer.position()));
+		buffer.get(dest, offset + done, buffered);
+		done += buffered;
 		
-		value |= bitBuffer >>> (available - numBits);
-		bitBuffer &= bitMask[available - numBits];
+		try {
+			while (done < length) {
+				if (length - done >= BUFFER_SIZE) {
+					int count = input.read(ByteBuffer.wrap(dest, offset + done, length - done));
+					if (count == -1) break;
+					bitsRead += (long) BYTE_SIZE * count;
+					done += count;
+				}
+				else {
+					if (!fillBuffer()) break;
+					int count = Math.min(length - done, limit);
+					buffer.get(dest, offset + done, count);
+					done += count;
+				}
+			}
+		}
+		catch (IOException io) {
+			throw new RuntimeException(io);
+		}
+		return done == 0 && length > 0 ? -1 : done;
+	}
+	
+	// consume numBits (at most 32) bits, -1 if not enough are left
+	private long take(int numBits) {
+		if (numBits > available) {
+			pullBytes(numBits);
+			if (numBits > available) {
+				return -1;
+			}
+		}
 		available -= numBits;
-		//bitsRead += numBits;
+		long value = bitBuffer >>> available;
+		bitBuffer &= (1L << available) - 1;
 		return value;
 	}
 	
-	private boolean fillBitBuffer() {
-		if (!buffer.hasRemaining()) {
-			if (!fillBuffer()) {
-				return false;
+	// top up the bit buffer, keeping bits already there, until it holds
+	// at least numBits bits or the input is exhausted
+	private void pullBytes(int numBits) {
+		while (available < numBits) {
+			if (buffer.position() >= limit && !fillBuffer()) {
+				return;
+			}
+			int left = limit - buffer.position();
+			if (available == 0 && left >= BIT_BUFFER_SIZE) {
+				bitBuffer = buffer.getLong();
+				available = LONG_SIZE;
+			}
+			else if (available <= INT_SIZE && left >= INT_SIZE / BYTE_SIZE) {
+				bitBuffer = (bitBuffer << INT_SIZE) | (buffer.getInt() & 0xffffffffL);
+				available += INT_SIZE;
+			}
+			else if (available <= LONG_SIZE - BYTE_SIZE) {
+				bitBuffer = (bitBuffer << BYTE_SIZE) | (buffer.get() & 0xff);
+				available += BYTE_SIZE;
+			}
+			else {
+				return;
 			}
 		}
-		
-		available = BYTE_SIZE * Math.min(BIT_BUFFER_SIZE, limit - buffer.position());
-		bitBuffer = buffer.getLong();
-		bitBuffer >>>= (int) Math.pow(2, BIT_BUFFER_SIZE) - available;
-		return true;
+	}
+	
+	// a channel reading straight into the array behind a heap buffer,
+	// where Channels.newChannel would copy through a buffer of its own
+	private static ReadableByteChannel channel(InputStream in) {
+		return new ReadableByteChannel() {
+			private boolean open = true;
+			
+			@Override
+			public int read(ByteBuffer dest) throws IOException {
+				int read = in.read(dest.array(), dest.arrayOffset() + dest.position(), dest.remaining());
+				if (read > 0) {
+					dest.position(dest.position() + read);
+				}
+				return read;
+			}
+			
+			@Override
+			public boolean isOpen() {
+				return open;
+			}
+			
+			@Override
+			public void close() throws IOException {
+				open = false;
+				in.close();
+			}
+		};
 	}
 	
 	private boolean fillBuffer() {
@@ -148,8 +395,7 @@ public class BitInputStream extends InputStream {
 			if (limit == -1) {
 				return false;
 			}
-			bitsRead += 8*limit;
-			buffer.limit(limit + (BIT_BUFFER_SIZE - limit % BIT_BUFFER_SIZE) % BIT_BUFFER_SIZE);
+			bitsRead += 8L*limit;
 			return true;
 		}
 		catch (IOException io) {
@@ -1,7 +1,7 @@
 /**
  *	Basic bit OutputStream utility based on the java.nio
  *	package.  Uses multiple buffers to move optimized chunks
- *	at a time.  Allows for writing up to 32 bits at a time.
+ *	at a time.  Allows for writing up to 64 bits at a time.
  *
  *	@contributor Owen Astrachan
  *	@author Brian Lavallee
@@ -16,30 +16,23 @@ import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.nio.ByteBuffer;
-import java.nio.channels.Channels;
 import java.nio.channels.WritableByteChannel;
+import java.util.function.LongSupplier;
 
 public class BitOutputStream extends OutputStream {
 	
 	public static final int BYTE_SIZE = 8;
 	private static final int INT_SIZE = 32;
-	private static final int BUFFER_SIZE = 8192;
-	
-	private static final long[] bitMask = { 0x00, 0x01, 0x03, 0x07, 0x0f, 0x1f, 0x3f, 0x7f, 0xff, 0x1ff, 0x3ff, 0x7ff,
-			0xfff, 0x1fff, 0x3fff, 0x7fff, 0xffff, 0x1ffff, 0x3ffff, 0x7ffff, 0xfffff, 0x1fffff, 0x3fffff, 0x7fffff,
-			0xffffff, 0x1ffffff, 0x3ffffff, 0x7ffffff, 0xfffffff, 0x1fffffff, 0x3fffffff, 0x7fffffff, 0xffffffff,
-			0x1ffffffffl, 0x3ffffffffl, 0x7ffffffffl, 0xfffffffffl, 0x1fffffffffl, 0x3fffffffffl, 0x7fffffffffl,
-			0xffffffffffl, 0x1ffffffffffl, 0x3ffffffffffl, 0x7ffffffffffl, 0xfffffffffffl, 0x1fffffffffffl,
-			0x3fffffffffffl, 0x7fffffffffffl, 0xffffffffffffl, 0x1ffffffffffffl, 0x3ffffffffffffl, 0x7ffffffffffffl,
-			0xfffffffffffffl, 0x1fffffffffffffl, 0x3fffffffffffffl, 0x7fffffffffffffl, 0xffffffffffffffl,
-			0x1ffffffffffffffl, 0x3ffffffffffffffl, 0x7ffffffffffffffl, 0xfffffffffffffffl, 0x1fffffffffffffffl,
-			0x3fffffffffffffffl, 0x7fffffffffffffffl, 0xffffffffffffffffl };
+	private static final int LONG_SIZE = 64;
+	static final int BUFFER_SIZE = 8192;
 	
 	private OutputStream source;
-	private int bitsWritten, available;
+	private long bitsWritten;
+	private int available;
 	private long bitBuffer;
 	private ByteBuffer buffer;
 	private WritableByteChannel output;
+	private LongSupplier limit;
 	
 	/**
 	 * Construct stream from a path to a file
@@ -57,7 +50,7 @@ public class BitOutputStream extends OutputStream {
      */
 	public BitOutputStream(File fileSource) {
 		try {
-			initialize(new FileOutputStream(fileSource));
+			initialize(new FileOutputStream(fileSource), null);
 		}
 		catch (FileNotFoundException fnf) {
 			throw new RuntimeException(fnf);
@@ -70,16 +63,27 @@ public class BitOutputStream extends OutputStream {
 	 * @param out is where bits will be written/output
 	 */
 	public BitOutputStream(OutputStream out) {
-		initialize(out);
+		initialize(out, null);
 	}
 	
-	private void initialize(OutputStream out) {
+	/**
+	 * Like BitOutputStream(out), but writes through buffer instead of
+	 * allocating one, so a HuffContext can reuse it from stream to
+	 * stream. No two open streams may share a buffer.
+	 * @param buffer is a heap buffer of BUFFER_SIZE bytes
+	 */
+	BitOutputStream(OutputStream out, ByteBuffer buffer) {
+		initialize(out, buffer);
+	}
+	
+	private void initialize(OutputStream out, ByteBuffer reuse) {
 		source = out;
 		bitsWritten = 0;
 		available = 64;
 		bitBuffer = 0;
-		output = Channels.newChannel(source);
-		buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		output = out instanceof FileOutputStream ? ((FileOutputStream) out).getChannel() : channel(out);
+		buffer = reuse != null ? reuse : ByteBuffer.allocate(BUFFER_SIZE);
+		buffer.clear();
 	}
 	
 	/**
@@ -87,10 +91,21 @@ public class BitOutputStream extends OutputStream {
 	 * of this BitOUtputStream.
 	 * @return number of bits written
 	 */
-	public int bitsWritten() {
+	public long bitsWritten() {
 		return bitsWritten;
 	}
 	
+	/**
+	 * Make writes fail with a HuffException once more bits have been
+	 * written than limit allows. The limit is checked each time the
+	 * write buffer is emptied, so at most one buffer more is accepted
+	 * and nothing past the limit reaches the underlying stream.
+	 * @param limit gives the most bits allowed, asked again at each check
+	 */
+	public void setLimit(LongSupplier limit) {
+		this.limit = limit;
+	}
+	
 	/**
 	 * Flush any unwritten bits, called when .close() is called,
 	 * but can be called explicitly as well.
@@ -135,24 +150,82 @@ public class BitOutputStream extends OutputStream {
 		if (numBits > INT_SIZE || numBits < 1) {
 			throw new RuntimeException("Illegal argument: numBits must be on [1, 32]");
 		}
+		put(numBits, Integer.toUnsignedLong(value) & ((1L << numBits) - 1));
+	}
+	
+	/**
+	 * Writes the right-most/least significant numBits of a
+	 * long value to this stream
+	 * @param numBits is number of bits written, on [1, 64]
+	 * @param value is source of bits written
+	 */
+	public void writeBits(int numBits, long value) {
+		if (numBits > LONG_SIZE || numBits < 1) {
+			throw new RuntimeException("Illegal argument: numBits must be on [1, 64]");
+		}
+		if (numBits < LONG_SIZE) {
+			value &= (1L << numBits) - 1;
+		}
+		put(numBits, value);
+	}
+	
+	/**
+	 * Writes length bytes from source. When the stream is at a byte
+	 * boundary the bytes go straight to the write buffer (or to the
+	 * underlying channel for large writes) rather than through the bit
+	 * buffer; otherwise they are written 8 bits at a time.
+	 * @param source is where bytes come from
+	 * @param offset is index in source of first byte written
+	 * @param length is number of bytes written
+	 */
+	public void writeBytes(byte[] source, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > source.length) {
+			throw new IndexOutOfBoundsException("offset " + offset + ", length " + length);
+		}
+		if (available % BYTE_SIZE != 0) {
+			for (int k = 0; k < length; k++) {
+				put(BYTE_SIZE, source[offset + k] & 0xff);
+			}
+			return;
+		}
 		
-		bitsWritten += numBits;
-		if (numBits < 32) {
-		    value = value & ~(~0 << numBits);
+		emptyBitBufferExact();
+		bitsWritten += (long) BYTE_SIZE * length;
+		if (length < buffer.remaining()) {
+			buffer.put(source, offset, length);
+			return;
+		}
+		try {
+			emptyBuffer();
+			ByteBuffer wrapped = ByteBuffer.wrap(source, offset, length);
+			while (wrapped.hasRemaining()) {
+				output.write(wrapped);
+			}
+		}
+		catch (IOException io) {
+			throw new RuntimeException(io);
 		}
+	}
+	
+	// value has no bits set above numBits, available is never 0 on entry
+	private void put(int numBits, long value) {
+		bitsWritten += numBits;
 		if (numBits > available) {
-			bitBuffer |= Integer.toUnsignedLong(value) >>> (numBits - available);
-			value &= bitMask[numBits - available];
 			numBits -= available;
+			bitBuffer |= value >>> numBits;
+			value &= (1L << numBits) - 1;
 			emptyBitBuffer();
 		}
 		
-		bitBuffer |= Integer.toUnsignedLong(value) << (available - numBits);
+		bitBuffer |= value << (available - numBits);
 		available -= numBits;
+		if (available == 0) {
+			emptyBitBuffer();
+		}
 	}
 	
 	private void emptyBitBuffer() {
-		if (!buffer.hasRemaining()) {
+		if (buffer.remaining() < LONG_SIZE / BYTE_SIZE) {
 			emptyBuffer();
 		}
 		
@@ -162,7 +235,7 @@ public class BitOutputStream extends OutputStream {
 	}
 	
 	private void emptyBitBufferExact() {
-		if (!buffer.hasRemaining()) {
+		if (buffer.remaining() < LONG_SIZE / BYTE_SIZE) {
 			emptyBuffer();
 		}
 		
@@ -173,7 +246,37 @@ public class BitOutputStream extends OutputStream {
 		}
 	}
 	
+	// a channel writing straight from the array behind a heap buffer,
+	// where Channels.newChannel would copy through a buffer of its own
+	private static WritableByteChannel channel(OutputStream out) {
+		return new WritableByteChannel() {
+			private boolean open = true;
+			
+			@Override
+			public int write(ByteBuffer from) throws IOException {
+				int length = from.remaining();
+				out.write(from.array(), from.arrayOffset() + from.position(), length);
+				from.position(from.limit());
+				return length;
+			}
+			
+			@Override
+			public boolean isOpen() {
+				return open;
+			}
+			
+			@Override
+			public void close() throws IOException {
+				open = false;
+				out.close();
+			}
+		};
+	}
+	
 	private void emptyBuffer() {
+		if (limit != null && bitsWritten > limit.getAsLong()) {
+			throw new HuffException("output exceeds limit of " + limit.getAsLong() + " bits");
+		}
 		try {
 			buffer.flip();
 			output.write(buffer);
@@ -0,0 +1,64 @@
+/**
+ * Burrows-Wheeler transform of a block: the byte preceding each suffix,
+ * with suffixes in sorted order. The suffix array is built in linear
+ * time by SuffixArray. The side information is the primary index, the
+ * row where the (implicit) end-of-block sentinel sorts.
+ */
+
+public class BurrowsWheelerTransform implements HuffTransform {
+
+	@Override
+	public int id() {
+		return BWT;
+	}
+
+	@Override
+	public byte[] forward(byte[] data, int length, int[] param) {
+		int[] sa = SuffixArray.build(data, length);
+		byte[] result = new byte[length];
+		int primary = 0;
+		for (int row = 0, k = 0; row <= length; row++) {
+			if (sa[row] == 0) {
+				primary = row;
+			}
+			else {
+				result[k++] = data[sa[row] - 1];
+			}
+		}
+		param[0] = primary;
+		return result;
+	}
+
+	@Override
+	public byte[] inverse(byte[] data, int length, int param) {
+		if (param < 0 || param > length) {
+			throw new HuffException("bad BWT primary index " + param);
+		}
+		// rows are 0..length with the sentinel, smallest of all, at row param
+		int[] start = new int[HuffProcessor.ALPH_SIZE + 1];
+		for (int k = 0; k < length; k++) {
+			start[(data[k] & 0xff) + 1]++;
+		}
+		start[0] = 1;
+		for (int c = 1; c <= HuffProcessor.ALPH_SIZE; c++) {
+			start[c] += start[c - 1];
+		}
+		int[] next = new int[length + 1];
+		for (int row = 0; row <= length; row++) {
+			if (row == param) continue;
+			int c = data[row < param ? row : row - 1] & 0xff;
+			next[row] = start[c]++;
+		}
+
+		byte[] result = new byte[length];
+		int row = 0;
+		for (int k = length - 1; k >= 0; k--) {
+			if (row == param) {
+				throw new HuffException("bad BWT primary index " + param);
+			}
+			result[k] = data[row < param ? row : row - 1];
+			row = next[row];
+		}
+		return result;
+	}
+}
@@ -0,0 +1,42 @@
+/**
+ * Replaces each byte by its difference (mod 256) from the byte stride
+ * positions earlier. A stride of 1 suits smooth 8-bit samples; larger
+ * strides line up samples of the same channel in interleaved image
+ * data (2 for 16-bit samples, 3 for RGB, 4 for RGBA).
+ */
+
+public class DeltaTransform implements HuffTransform {
+
+	private final int myStride;
+
+	public DeltaTransform(int stride) {
+		if (stride < 1) {
+			throw new HuffException("bad delta stride " + stride);
+		}
+		myStride = stride;
+	}
+
+	@Override
+	public int id() {
+		return DELTA;
+	}
+
+	@Override
+	public byte[] forward(byte[] data, int length, int[] param) {
+		byte[] result = new byte[length];
+		for (int k = 0; k < length; k++) {
+			result[k] = (byte) (data[k] - (k >= myStride ? data[k - myStride] : 0));
+		}
+		param[0] = myStride;
+		return result;
+	}
+
+	@Override
+	public byte[] inverse(byte[] data, int length, int param) {
+		byte[] result = new byte[length];
+		for (int k = 0; k < length; k++) {
+			result[k] = (byte) (data[k] + (k >= myStride ? result[k - myStride] : 0));
+		}
+		return result;
+	}
+}
@@ -0,0 +1,425 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Headless statistics for a corpus of files, for choosing settings
+ * before compressing: per-file byte histograms, Shannon entropy, the
+ * size compress would produce, and which symbol width (4, 8 or 16 bits)
+ * an order-0 Huffman code would do best with. Predicted sizes come from
+ * HuffEstimator, the same counting and tree-cost logic compress uses.
+ * <P>
+ * Directories are walked on a fork/join pool, one task per file, and
+ * files larger than CHUNK_SIZE are split into chunks counted in
+ * parallel with positional reads. Files under SMALL_FILE bytes are
+ * counted in per-worker scratch space, their byte pairs sorted instead
+ * of tallied in a full pair table. Each worker merges the files it
+ * counts into its own totals, combined once at the end, so memory does
+ * not grow with the number of files beyond one result row per file.
+ * <P>
+ * Usage: java HuffAnalyzer [-json] [-threads n] path...
+ */
+
+public class HuffAnalyzer {
+
+	public static final int CHUNK_SIZE = 1 << 26;
+	public static final int SMALL_FILE = 1 << 16;
+	public static final int[] WIDTHS = { 4, 8, 16 };
+
+	private static final int BUFFER_SIZE = 1 << 20;
+
+	// what one worker holds: a read buffer, its totals and one chunk's
+	// histograms, and small-file scratch; caps the number of workers
+	private static final long WORKER_MEMORY = BUFFER_SIZE + 8L * ((1 << 16) + (1 << 8)) * 2
+			+ 12L * SMALL_FILE / 2;
+
+	private static final ThreadLocal<byte[]> ourBuffer =
+			ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+	private static final ThreadLocal<int[]> ourPairs =
+			ThreadLocal.withInitial(() -> new int[SMALL_FILE / 2]);
+
+	/**
+	 * Statistics for one file, or for the whole corpus.
+	 */
+	public static class Row {
+		public final String path;
+		public final long size;
+		public final double entropy;
+		public final long[] widthBits;
+		public final int bestWidth;
+
+		Row(String path, Histogram histogram) {
+			this(path, histogram.size, histogram.bytes, HuffEstimator.compressedBits(histogram.pairs, 16));
+		}
+
+		// pairBits is the 16-bit size, the others follow from the byte counts
+		Row(String path, long size, long[] bytes, long pairBits) {
+			this.path = path;
+			this.size = size;
+			entropy = entropy(bytes, size);
+			widthBits = new long[WIDTHS.length];
+			int best = 0;
+			for (int k = 0; k < WIDTHS.length; k++) {
+				widthBits[k] = WIDTHS[k] == 16 ? pairBits : compressedBits(bytes, WIDTHS[k]);
+				if (widthBits[k] < widthBits[best]) best = k;
+			}
+			bestWidth = WIDTHS[best];
+		}
+
+		/**
+		 * @return bits compress writes for this data, 8-bit symbols
+		 */
+		public long huffmanBits() {
+			return widthBits[1];
+		}
+	}
+
+	/**
+	 * Per-file rows in path order and totals over the merged histograms.
+	 * separateBits is the sum of per-file Huffman sizes, to compare with
+	 * total.huffmanBits(), the size with one code for everything.
+	 */
+	public static class Report {
+		public final List<Row> files;
+		public final Row total;
+		public final long separateBits;
+
+		Report(List<Row> files, Row total) {
+			this.files = files;
+			this.total = total;
+			long sum = 0;
+			for (Row row : files) {
+				sum += row.huffmanBits();
+			}
+			separateBits = sum;
+		}
+
+		public void writeCsv(PrintStream out) {
+			out.print("path,bytes,entropy,huffman_bits,ratio,best_width");
+			for (int width : WIDTHS) {
+				out.print(",bits_w" + width);
+			}
+			out.println();
+			for (Row row : files) {
+				csvRow(out, row);
+			}
+			csvRow(out, total);
+		}
+
+		public void writeJson(PrintStream out) {
+			out.println("{");
+			out.println("  \"files\": [");
+			for (int k = 0; k < files.size(); k++) {
+				out.print("    ");
+				jsonRow(out, files.get(k));
+				out.println(k + 1 < files.size() ? "," : "");
+			}
+			out.println("  ],");
+			out.print("  \"total\": ");
+			jsonRow(out, total);
+			out.println(",");
+			out.println("  \"separate_bits\": " + separateBits);
+			out.println("}");
+		}
+
+		private static void csvRow(PrintStream out, Row row) {
+			String path = row.path;
+			if (path.indexOf(',') >= 0 || path.indexOf('"') >= 0 || path.indexOf('\n') >= 0) {
+				path = '"' + path.replace("\"", "\"\"") + '"';
+			}
+			out.printf(Locale.ROOT, "%s,%d,%.4f,%d,%.4f,%d", path, row.size, row.entropy,
+					row.huffmanBits(), ratio(row), row.bestWidth);
+			for (long bits : row.widthBits) {
+				out.print("," + bits);
+			}
+			out.println();
+		}
+
+		private static void jsonRow(PrintStream out, Row row) {
+			StringBuilder path = new StringBuilder();
+			for (char c : row.path.toCharArray()) {
+				if (c == '"' || c == '\\') path.append('\\').append(c);
+				else if (c < ' ') path.append(String.format("\\u%04x", (int) c));
+				else path.append(c);
+			}
+			out.printf(Locale.ROOT, "{\"path\": \"%s\", \"bytes\": %d, \"entropy\": %.4f, "
+					+ "\"huffman_bits\": %d, \"ratio\": %.4f, \"best_width\": %d, \"width_bits\": {",
+					path, row.size, row.entropy, row.huffmanBits(), ratio(row), row.bestWidth);
+			for (int k = 0; k < WIDTHS.length; k++) {
+				out.print((k > 0 ? ", " : "") + "\"" + WIDTHS[k] + "\": " + row.widthBits[k]);
+			}
+			out.print("}}");
+		}
+
+		// compressed size over original, both in bits
+		private static double ratio(Row row) {
+			return row.size == 0 ? 0 : (double) row.huffmanBits() / (8.0 * row.size);
+		}
+	}
+
+	// byte and aligned byte-pair counts; nibble counts follow from bytes
+	static class Histogram {
+		final long[] bytes = new long[1 << 8];
+		final long[] pairs = new long[1 << 16];
+		long size;
+
+		void add(Histogram other) {
+			for (int k = 0; k < bytes.length; k++) bytes[k] += other.bytes[k];
+			for (int k = 0; k < pairs.length; k++) pairs[k] += other.pairs[k];
+			size += other.size;
+		}
+	}
+
+	// Shannon entropy in bits per byte
+	static double entropy(long[] bytes, long size) {
+		double bits = 0;
+		for (long count : bytes) {
+			if (count > 0) bits -= count * Math.log((double) count / size);
+		}
+		return size == 0 ? 0 : bits / Math.log(2) / size;
+	}
+
+	// size with 4- or 8-bit symbols, from byte counts
+	static long compressedBits(long[] bytes, int width) {
+		if (width == 8) {
+			return HuffEstimator.compressedBits(bytes, width);
+		}
+		long[] nibbles = new long[1 << 4];
+		for (int k = 0; k < bytes.length; k++) {
+			nibbles[k >>> 4] += bytes[k];
+			nibbles[k & 0xf] += bytes[k];
+		}
+		return HuffEstimator.compressedBits(nibbles, width);
+	}
+
+	private final ForkJoinPool myPool;
+
+	/**
+	 * @param threads is the number of workers wanted, reduced if the
+	 * global HuffBudget cannot cover that many
+	 */
+	public HuffAnalyzer(int threads) {
+		myPool = new ForkJoinPool(HuffBudget.global().workers(threads, WORKER_MEMORY));
+	}
+
+	public HuffAnalyzer() {
+		this(Runtime.getRuntime().availableProcessors());
+	}
+
+	/**
+	 * Analyze every regular file under the roots, which may be files or
+	 * directories. Symbolic links to directories are not followed.
+	 */
+	public Report analyze(List<File> roots) {
+		Map<Thread, Histogram> totals = new ConcurrentHashMap<>();
+		List<Row> rows = Collections.synchronizedList(new ArrayList<>());
+		List<ForkJoinTask<?>> tasks = new ArrayList<>();
+		for (File root : roots) {
+			tasks.add(myPool.submit(new Walk(root, root.getPath(), totals, rows)));
+		}
+		try {
+			for (ForkJoinTask<?> task : tasks) {
+				task.get();
+			}
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new HuffException(e.getCause().toString());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HuffException("analysis interrupted");
+		}
+		Histogram total = new Histogram();
+		for (Histogram histogram : totals.values()) {
+			total.add(histogram);
+		}
+		List<Row> sorted = new ArrayList<>(rows);
+		sorted.sort(Comparator.comparing(row -> row.path));
+		return new Report(sorted, new Row("*total*", total));
+	}
+
+	public Report analyze(File root) {
+		return analyze(Collections.singletonList(root));
+	}
+
+	public void shutdown() {
+		myPool.shutdown();
+	}
+
+	// one file or directory; merges file histograms into the running
+	// thread's totals, which only that thread touches
+	@SuppressWarnings("serial")
+	private static class Walk extends RecursiveAction {
+		private final File myFile;
+		private final String myPath;
+		private final Map<Thread, Histogram> myTotals;
+		private final List<Row> myRows;
+
+		Walk(File file, String path, Map<Thread, Histogram> totals, List<Row> rows) {
+			myFile = file;
+			myPath = path;
+			myTotals = totals;
+			myRows = rows;
+		}
+
+		@Override
+		protected void compute() {
+			if (myFile.isDirectory()) {
+				if (Files.isSymbolicLink(myFile.toPath())) return;
+				File[] children = myFile.listFiles();
+				if (children == null) return;
+				List<Walk> walks = new ArrayList<>();
+				for (File child : children) {
+					walks.add(new Walk(child, myPath + File.separator + child.getName(), myTotals, myRows));
+				}
+				invokeAll(walks);
+				return;
+			}
+			if (!myFile.isFile()) return;
+
+			try (FileChannel channel = FileChannel.open(myFile.toPath())) {
+				long size = channel.size();
+				if (size < SMALL_FILE) {
+					countSmall(channel, (int) size);
+					return;
+				}
+				Histogram histogram = new Count(channel, 0, size).invoke();
+				myRows.add(new Row(myPath, histogram));
+				myTotals.computeIfAbsent(Thread.currentThread(), t -> new Histogram()).add(histogram);
+			}
+			catch (IOException io) {
+				throw new RuntimeException(io);
+			}
+		}
+
+		// count a small file with sorted pairs instead of a pair table,
+		// pairing bytes the way Count does
+		private void countSmall(FileChannel channel, int size) throws IOException {
+			byte[] data = ourBuffer.get();
+			int[] pairs = ourPairs.get();
+			ByteBuffer buffer = ByteBuffer.wrap(data, 0, size);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, buffer.position()) == -1) break;
+			}
+			int length = buffer.position();
+			long[] bytes = new long[1 << 8];
+			int count = 0;
+			for (int k = 0; k < length; k += 2) {
+				int first = data[k] & 0xff;
+				int second = k + 1 < length ? data[k + 1] & 0xff : 0;
+				bytes[first]++;
+				if (k + 1 < length) bytes[second]++;
+				pairs[count++] = (first << 8) | second;
+			}
+			Arrays.sort(pairs, 0, count);
+			long[] runs = new long[count];
+			int distinct = 0;
+			for (int k = 0; k < count; k++) {
+				if (k == 0 || pairs[k] != pairs[k - 1]) distinct++;
+				runs[distinct - 1]++;
+			}
+			myRows.add(new Row(myPath, length, bytes,
+					HuffEstimator.compressedBits(Arrays.copyOf(runs, distinct), 16)));
+
+			Histogram total = myTotals.computeIfAbsent(Thread.currentThread(), t -> new Histogram());
+			for (int k = 0; k < bytes.length; k++) total.bytes[k] += bytes[k];
+			for (int k = 0; k < count; k++) total.pairs[pairs[k]]++;
+			total.size += length;
+		}
+	}
+
+	// counts bytes [start, end) of a file, splitting large ranges at
+	// even offsets so byte pairs stay aligned
+	@SuppressWarnings("serial")
+	private static class Count extends RecursiveTask<Histogram> {
+		private final FileChannel myChannel;
+		private final long myStart, myEnd;
+
+		Count(FileChannel channel, long start, long end) {
+			myChannel = channel;
+			myStart = start;
+			myEnd = end;
+		}
+
+		@Override
+		protected Histogram compute() {
+			if (myEnd - myStart > CHUNK_SIZE) {
+				long middle = myStart + Math.max(1, (myEnd - myStart) / CHUNK_SIZE / 2) * CHUNK_SIZE;
+				Count right = new Count(myChannel, middle, myEnd);
+				right.fork();
+				Histogram histogram = new Count(myChannel, myStart, middle).compute();
+				histogram.add(right.join());
+				return histogram;
+			}
+			try {
+				return count();
+			}
+			catch (IOException io) {
+				throw new RuntimeException(io);
+			}
+		}
+
+		private Histogram count() throws IOException {
+			Histogram histogram = new Histogram();
+			long[] bytes = histogram.bytes;
+			long[] pairs = histogram.pairs;
+			byte[] data = ourBuffer.get();
+			ByteBuffer buffer = ByteBuffer.wrap(data);
+			long position = myStart;
+			int kept = 0;
+			while (position < myEnd) {
+				buffer.clear();
+				buffer.position(kept);
+				buffer.limit((int) Math.min(data.length, kept + myEnd - position));
+				int read = myChannel.read(buffer, position);
+				if (read == -1) break;
+				position += read;
+				int length = kept + read;
+				int k = 0;
+				for (; k + 1 < length; k += 2) {
+					int first = data[k] & 0xff;
+					int second = data[k + 1] & 0xff;
+					bytes[first]++;
+					bytes[second]++;
+					pairs[(first << 8) | second]++;
+				}
+				// an odd byte waits for its partner in the next read
+				kept = length - k;
+				if (kept > 0) data[0] = data[k];
+			}
+			if (kept > 0) {
+				// a trailing odd byte is paired with a zero byte
+				bytes[data[0] & 0xff]++;
+				pairs[(data[0] & 0xff) << 8]++;
+			}
+			histogram.size = position - myStart;
+			return histogram;
+		}
+	}
+
+	public static void main(String[] args) {
+		boolean json = false;
+		int threads = Runtime.getRuntime().availableProcessors();
+		List<File> roots = new ArrayList<>();
+		for (int k = 0; k < args.length; k++) {
+			if (args[k].equals("-json")) json = true;
+			else if (args[k].equals("-threads") && k + 1 < args.length) threads = Integer.parseInt(args[++k]);
+			else roots.add(new File(args[k]));
+		}
+		if (roots.isEmpty()) {
+			System.err.println("usage: java HuffAnalyzer [-json] [-threads n] path...");
+			return;
+		}
+		HuffAnalyzer analyzer = new HuffAnalyzer(threads);
+		Report report = analyzer.analyze(roots);
+		analyzer.shutdown();
+		if (json) report.writeJson(System.out);
+		else report.writeCsv(System.out);
+	}
+}
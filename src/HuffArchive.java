@@ -0,0 +1,326 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Many files packed into one archive. Each member is compressed
+ * separately and starts on a byte boundary, and a central directory at
+ * the end records every member's name, original size, offset and
+ * compressed length, so the archive can be listed without decoding
+ * anything and any member extracted by seeking straight to it.
+ * <P>
+ * With a shared codebook, one tree is built from the combined counts of
+ * all members and stored once in the directory; members then hold only
+ * codes, which saves a tree header per member on many small files.
+ * Otherwise each member is a complete compressed file as written by
+ * HuffProcessor.compress.
+ * <P>
+ * Layout: the members, then the directory (for each member its name
+ * with DataOutput.writeUTF, then size, offset and length as longs,
+ * then the codebook length as an int and the codebook's bytes), then a
+ * fixed trailer: directory offset (long), member count (int), flags
+ * (int) and HUFF_ARCHIVE (int).
+ * <P>
+ * An open HuffArchive only reads with positional channel reads, so
+ * members can be extracted from several threads at once.
+ */
+
+public class HuffArchive implements Closeable {
+
+	public static final int SHARED_CODEBOOK = 1;
+
+	private static final int TRAILER_SIZE = 8 + 4 + 4 + 4;
+
+	/**
+	 * One archive member, as recorded in the directory.
+	 */
+	public static class Member {
+		public final String name;
+		public final long size, offset, length;
+
+		Member(String name, long size, long offset, long length) {
+			this.name = name;
+			this.size = size;
+			this.offset = offset;
+			this.length = length;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%s %d -> %d", name, size, length);
+		}
+	}
+
+	private final FileChannel myChannel;
+	private final List<Member> myMembers;
+	private final byte[] myCodebook;
+	private final HuffProcessor myProcessor;
+
+	public HuffArchive(File file) {
+		this(file, HuffBudget.global());
+	}
+
+	/**
+	 * Open an archive and read its directory.
+	 * @param budget limits decoding memory and so the number of members
+	 * extracted at once
+	 * @throws HuffException if file is not an archive
+	 */
+	public HuffArchive(File file, HuffBudget budget) {
+		myProcessor = new HuffProcessor(0, HuffProcessor.DECODE_TABLE, budget);
+		FileChannel channel = null;
+		boolean opened = false;
+		try {
+			channel = FileChannel.open(file.toPath());
+			myChannel = channel;
+			long size = myChannel.size();
+			if (size < TRAILER_SIZE) {
+				throw new HuffException("not an archive: " + file);
+			}
+			DataInputStream trailer = new DataInputStream(region(size - TRAILER_SIZE, TRAILER_SIZE));
+			long directory = trailer.readLong();
+			int count = trailer.readInt();
+			int flags = trailer.readInt();
+			if (trailer.readInt() != HuffProcessor.HUFF_ARCHIVE || directory < 0 || directory > size - TRAILER_SIZE) {
+				throw new HuffException("not an archive: " + file);
+			}
+
+			DataInputStream dir = new DataInputStream(new BufferedInputStream(
+					region(directory, size - TRAILER_SIZE - directory)));
+			List<Member> members = new ArrayList<>();
+			for (int k = 0; k < count; k++) {
+				members.add(new Member(dir.readUTF(), dir.readLong(), dir.readLong(), dir.readLong()));
+			}
+			byte[] codebook = new byte[dir.readInt()];
+			dir.readFully(codebook);
+			myMembers = Collections.unmodifiableList(members);
+			myCodebook = (flags & SHARED_CODEBOOK) != 0 ? codebook : null;
+			opened = true;
+		}
+		catch (IOException io) {
+			throw new RuntimeException(io);
+		}
+		finally {
+			if (!opened && channel != null) {
+				try {
+					channel.close();
+				}
+				catch (IOException io) {
+					// already failing, keep the first error
+				}
+			}
+		}
+	}
+
+	/**
+	 * Write an archive of files.
+	 * @param flags is 0 or SHARED_CODEBOOK
+	 * @throws IllegalArgumentException if two files have the same name,
+	 * since members are stored by name only
+	 */
+	public static void create(File archive, List<File> files, int flags) {
+		Set<String> names = new HashSet<>();
+		for (File file : files) {
+			if (!names.add(file.getName())) {
+				throw new IllegalArgumentException("duplicate member name: " + file.getName());
+			}
+		}
+		HuffProcessor hp = new HuffProcessor();
+		HuffContext ctx = HuffContext.local();
+		byte[] codebook = new byte[0];
+		if ((flags & SHARED_CODEBOOK) != 0) {
+			for (File file : files) {
+				BitInputStream in = new BitInputStream(open(file), 0, ctx.fileRead);
+				HuffEstimator.count(in, ctx.counts, ctx.bytes);
+				in.close();
+			}
+			ctx.counts[HuffProcessor.PSEUDO_EOF] = 1;
+			ctx.tree.fromCounts(ctx.counts);
+			ctx.tree.codes(ctx.codes, ctx.lengths);
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			BitOutputStream header = new BitOutputStream(bytes, ctx.blockWrite);
+			ctx.tree.writeHeader(header);
+			header.close();
+			codebook = bytes.toByteArray();
+		}
+
+		try (FileOutputStream stream = new FileOutputStream(archive)) {
+			FileChannel channel = stream.getChannel();
+			OutputStream unclosed = new FilterOutputStream(stream) {
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					out.write(b, off, len);
+				}
+
+				@Override
+				public void close() throws IOException {
+					flush();
+				}
+			};
+
+			List<Member> members = new ArrayList<>();
+			for (File file : files) {
+				long offset = channel.position();
+				BitInputStream in = new BitInputStream(open(file), BitInputStream.DEFAULT_MARK_LIMIT, ctx.fileRead);
+				BitOutputStream out = new BitOutputStream(unclosed, ctx.fileWrite);
+				if ((flags & SHARED_CODEBOOK) != 0) {
+					hp.writeCoded(in, out, ctx);
+					out.close();
+				}
+				else {
+					hp.compress(in, out, HuffContext.local());
+				}
+				in.close();
+				members.add(new Member(file.getName(), file.length(), offset, channel.position() - offset));
+			}
+
+			long directory = channel.position();
+			DataOutputStream dir = new DataOutputStream(new BufferedOutputStream(unclosed));
+			for (Member member : members) {
+				dir.writeUTF(member.name);
+				dir.writeLong(member.size);
+				dir.writeLong(member.offset);
+				dir.writeLong(member.length);
+			}
+			dir.writeInt(codebook.length);
+			dir.write(codebook);
+			dir.writeLong(directory);
+			dir.writeInt(members.size());
+			dir.writeInt(flags);
+			dir.writeInt(HuffProcessor.HUFF_ARCHIVE);
+			dir.flush();
+		}
+		catch (IOException io) {
+			throw new RuntimeException(io);
+		}
+	}
+
+	/**
+	 * @return the members in the order they were added
+	 */
+	public List<Member> members() {
+		return myMembers;
+	}
+
+	/**
+	 * Decompress one member to out, reading only that member's bytes.
+	 * Safe to call from several threads at once. Closes out, also when
+	 * decoding fails.
+	 */
+	public void extract(Member member, OutputStream out) {
+		try {
+			HuffContext ctx = HuffContext.local();
+			BitInputStream in = new BitInputStream(region(member.offset, member.length), 0, ctx.fileRead);
+			BitOutputStream bits = new BitOutputStream(out, ctx.fileWrite);
+			if (myCodebook == null) {
+				myProcessor.decompress(in, bits);
+				return;
+			}
+			ctx.tree.readHeader(new BitInputStream(new ByteArrayInputStream(myCodebook), 0, ctx.blockRead));
+			myProcessor.readCoded(in, bits, ctx);
+			bits.close();
+		}
+		catch (RuntimeException | Error e) {
+			try {
+				out.close();
+			}
+			catch (IOException io) {
+				e.addSuppressed(io);
+			}
+			throw e;
+		}
+	}
+
+	/**
+	 * Extract every member into directory on a pool of threads.
+	 * @param threads is number of worker threads, reduced if the budget
+	 * cannot cover that many decoders at once
+	 * @throws HuffException if two members would extract to the same file
+	 */
+	public void extractAll(File directory, int threads) {
+		Set<String> names = new HashSet<>();
+		for (Member member : myMembers) {
+			if (!names.add(new File(member.name).getName())) {
+				throw new HuffException("bad archive, duplicate member name " + member.name);
+			}
+		}
+		HuffBudget budget = myProcessor.budget();
+		ExecutorService pool = Executors.newFixedThreadPool(budget.workers(threads, HuffBlocks.DECODE_LEASE));
+		try {
+			List<Future<?>> pending = new ArrayList<>();
+			for (Member member : myMembers) {
+				File target = new File(directory, new File(member.name).getName());
+				pending.add(pool.submit(() -> {
+					try {
+						extract(member, new FileOutputStream(target));
+					}
+					catch (FileNotFoundException fnf) {
+						throw new RuntimeException(fnf);
+					}
+				}));
+			}
+			for (Future<?> future : pending) {
+				future.get();
+			}
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new HuffException(e.getCause().toString());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HuffException("extraction interrupted");
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+	@Override
+	public void close() {
+		try {
+			myChannel.close();
+		}
+		catch (IOException io) {
+			throw new RuntimeException(io);
+		}
+	}
+
+	// file opened for reading
+	private static InputStream open(File file) {
+		try {
+			return new FileInputStream(file);
+		}
+		catch (FileNotFoundException fnf) {
+			throw new RuntimeException(fnf);
+		}
+	}
+
+	// a stream over length bytes at position, read with positional reads
+	// so concurrent readers don't share a file position
+	private InputStream region(long position, long length) {
+		return new InputStream() {
+			private long myPosition = position;
+			private final long myEnd = position + length;
+
+			@Override
+			public int read() throws IOException {
+				byte[] one = new byte[1];
+				return read(one, 0, 1) == -1 ? -1 : one[0] & 0xff;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				if (myPosition >= myEnd) return -1;
+				len = (int) Math.min(len, myEnd - myPosition);
+				int read = myChannel.read(ByteBuffer.wrap(b, off, len), myPosition);
+				if (read > 0) myPosition += read;
+				return read;
+			}
+		};
+	}
+}
@@ -0,0 +1,219 @@
+import java.io.*;
+
+/**
+ * Block format used by the TRANSFORM option. Input is cut into blocks
+ * of BLOCK_SIZE bytes; each block is run through whichever chain of
+ * HuffTransforms gives the smallest coded size (HuffTuner with only the
+ * order-0 coder, counting the whole block), and the result is coded
+ * like an ordinary file.
+ * <P>
+ * Format after the HUFF_BLOCKS magic number, for each block:
+ * <ul>
+ * <li>a 1 bit (a 0 bit ends the stream)
+ * <li>number of transforms in 3 bits, then for each transform in the
+ * order applied, its id in 4 bits and its side information in 32 bits
+ * <li>the transformed block as written by HuffProcessor.writeBody
+ * </ul>
+ * The HUFF_ADAPTIVE format written by HuffTuner is the same except
+ * that each block records its coder in 2 bits after the transforms:
+ * ORDER_0 (HuffProcessor.writeBody), ORDER_1 (HuffOrder1.writeBody),
+ * or STORED (length in 32 bits, then the bytes as they are).
+ * Blocks are at most BLOCK_SIZE bytes but may be smaller: compress
+ * picks the largest size whose working memory fits the processor's
+ * HuffBudget, and leases that memory for each block it codes, as
+ * decompress does for each block it decodes.
+ * <P>
+ * Instances are reusable working state, normally owned by a HuffContext.
+ */
+
+public class HuffBlocks {
+
+	public static final int BLOCK_SIZE = 1 << 20;
+
+	// working memory per byte of block: the candidate outputs and the
+	// suffix array's int arrays when compressing, the decoded bytes and
+	// the inverse BWT's links when decompressing
+	static final int COMPRESS_MEMORY = 16;
+	private static final int DECOMPRESS_MEMORY = 12;
+
+	/**
+	 * Memory leased while decoding one block, the most a decoding
+	 * worker holds at once.
+	 */
+	static final long DECODE_LEASE = (long) BLOCK_SIZE * DECOMPRESS_MEMORY;
+
+	static final int ORDER_0 = 0;
+	static final int ORDER_1 = 1;
+	static final int STORED = 2;
+
+	private static final int CHAIN_BITS = 3;
+	private static final int ID_BITS = 4;
+	private static final int CODER_BITS = 2;
+
+	private static final HuffTransform BWT = new BurrowsWheelerTransform();
+	private static final HuffTransform MTF = new MoveToFrontTransform();
+	private static final HuffTransform RLE = new RunLengthTransform();
+
+	// chains sharing a prefix are adjacent so the prefix is computed once
+	static final HuffTransform[][] CANDIDATES = {
+		{},
+		{ new DeltaTransform(1) },
+		{ new DeltaTransform(2) },
+		{ new DeltaTransform(3) },
+		{ new DeltaTransform(4) },
+		{ RLE },
+		{ BWT, MTF },
+		{ BWT, MTF, RLE },
+	};
+
+	private byte[] myBlock = new byte[0];
+
+	/**
+	 * Write the magic number and all blocks of in. Does not close out.
+	 */
+	public void compress(HuffProcessor hp, BitInputStream in, BitOutputStream out, HuffContext ctx) {
+		compress(hp, in, out, ctx, HuffTuner.TRANSFORM, new HuffTuner.Metrics());
+	}
+
+	/**
+	 * Write all blocks of in, choosing each block's transforms and coder
+	 * with tuner and recording the choices in metrics. The format is
+	 * HUFF_ADAPTIVE if the tuner chooses coders, else HUFF_BLOCKS.
+	 */
+	@SuppressWarnings("try")
+	void compress(HuffProcessor hp, BitInputStream in, BitOutputStream out, HuffContext ctx,
+			HuffTuner tuner, HuffTuner.Metrics metrics) {
+		HuffBudget budget = hp.budget();
+		int size = budget.blockSize(BLOCK_SIZE, COMPRESS_MEMORY);
+		if (myBlock.length != size) {
+			myBlock = new byte[size];
+		}
+		out.writeBits(HuffProcessor.BITS_PER_INT,
+				tuner.adaptive() ? HuffProcessor.HUFF_ADAPTIVE : HuffProcessor.HUFF_BLOCKS);
+		while (true) {
+			try (HuffBudget.Lease lease = budget.lease((long) size * COMPRESS_MEMORY)) {
+				int length = in.readBytes(myBlock, 0, size);
+				if (length == -1) break;
+				tuner.writeBlock(hp, myBlock, length, out, ctx, metrics);
+			}
+		}
+		out.writeBits(1, 0);
+	}
+
+	/**
+	 * Decode all blocks; the magic number has already been read.
+	 * Does not close out.
+	 * @param adaptive is true for HUFF_ADAPTIVE, false for HUFF_BLOCKS
+	 * @throws HuffException if the input is malformed
+	 */
+	@SuppressWarnings("try")
+	public void decompress(HuffProcessor hp, BitInputStream in, BitOutputStream out, HuffContext ctx,
+			boolean adaptive) {
+		while (true) {
+			int more = in.readBits(1);
+			if (more == -1) {
+				throw new HuffException("bad input, blocks not terminated");
+			}
+			if (more == 0) break;
+			try (HuffBudget.Lease lease = hp.budget().lease(DECODE_LEASE)) {
+				byte[] block = readBlock(hp, in, ctx, adaptive);
+				out.writeBytes(block, 0, block.length);
+			}
+		}
+	}
+
+	/**
+	 * Write one block that has already been run through chain: its
+	 * header, and its body coded with coder.
+	 * @param params is the side information chain's transforms produced
+	 * @param coder is ORDER_0, ORDER_1 or STORED; only ORDER_0 unless
+	 * adaptive
+	 * @param adaptive is true for HUFF_ADAPTIVE, false for HUFF_BLOCKS
+	 */
+	void writeBlock(HuffProcessor hp, HuffTransform[] chain, int[] params, byte[] data, int length,
+			int coder, BitOutputStream out, HuffContext ctx, boolean adaptive) {
+		writeChain(chain, params, out);
+		if (adaptive) {
+			out.writeBits(CODER_BITS, coder);
+		}
+		if (coder == STORED) {
+			out.writeBits(HuffProcessor.BITS_PER_INT, length);
+			out.writeBytes(data, 0, length);
+		}
+		else if (coder == ORDER_1) {
+			ctx.order1().writeBody(new BitInputStream(new ByteArrayInputStream(data, 0, length), 0, ctx.blockRead), out);
+		}
+		else {
+			hp.writeBody(new BitInputStream(new ByteArrayInputStream(data, 0, length), 0, ctx.blockRead), out, ctx);
+		}
+	}
+
+	// the leading 1 bit and the transforms
+	private void writeChain(HuffTransform[] chain, int[] params, BitOutputStream out) {
+		out.writeBits(1, 1);
+		out.writeBits(CHAIN_BITS, chain.length);
+		for (int k = 0; k < chain.length; k++) {
+			out.writeBits(ID_BITS, chain[k].id());
+			out.writeBits(HuffProcessor.BITS_PER_INT, params[k]);
+		}
+	}
+
+	/**
+	 * Decode one block after its leading 1 bit and undo its transforms.
+	 * No stage may hold more than HuffTransform.MAX_DATA bytes.
+	 * @param adaptive is true when the block records its coder
+	 * @return the original block
+	 */
+	byte[] readBlock(HuffProcessor hp, BitInputStream in, HuffContext ctx, boolean adaptive) {
+		int count = in.readBits(CHAIN_BITS);
+		if (count == -1) {
+			throw new HuffException("bad input, block header ends early");
+		}
+		HuffTransform[] chain = new HuffTransform[count];
+		int[] params = new int[count];
+		for (int k = 0; k < count; k++) {
+			int id = in.readBits(ID_BITS);
+			if (id == -1) {
+				throw new HuffException("bad input, block header ends early");
+			}
+			params[k] = in.readBits(HuffProcessor.BITS_PER_INT);
+			chain[k] = HuffTransform.of(id, params[k]);
+		}
+
+		int coder = adaptive ? in.readBits(CODER_BITS) : ORDER_0;
+		byte[] block;
+		if (coder == STORED) {
+			int length = in.readBits(HuffProcessor.BITS_PER_INT);
+			if (length < 0 || length > HuffTransform.MAX_DATA) {
+				throw new HuffException("bad input, stored block length " + length);
+			}
+			block = new byte[length];
+			if (length > 0 && in.readBytes(block, 0, length) != length) {
+				throw new HuffException("bad input, stored block ends early");
+			}
+		}
+		else if (coder == ORDER_0 || coder == ORDER_1) {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			BitOutputStream decoded = new BitOutputStream(bytes, ctx.blockWrite);
+			decoded.setLimit(() -> (long) HuffTransform.MAX_DATA * HuffProcessor.BITS_PER_WORD);
+			if (coder == ORDER_1) {
+				ctx.order1().decompress(in, decoded);
+			}
+			else {
+				hp.readBody(in, decoded, ctx);
+			}
+			decoded.flush();
+			block = bytes.toByteArray();
+		}
+		else {
+			throw new HuffException("bad input, unknown block coder " + coder);
+		}
+		for (int k = count - 1; k >= 0; k--) {
+			block = chain[k].inverse(block, block.length, params[k]);
+		}
+		if (block.length > BLOCK_SIZE) {
+			throw new HuffException("bad input, block longer than " + BLOCK_SIZE);
+		}
+		return block;
+	}
+}
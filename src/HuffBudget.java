@@ -0,0 +1,169 @@
+/**
+ * A memory budget in bytes that codecs lease working memory from
+ * before allocating it. A lease that does not fit blocks until enough
+ * earlier leases are closed, so many compressions in one JVM queue up
+ * instead of running out of heap.
+ * <P>
+ * Budgets form a chain: every budget made with the one-argument
+ * constructor also leases from global(), so a lease must fit both the
+ * codec's own limit and the limit shared by the whole JVM. A single
+ * lease larger than a limit is allowed once nothing else is leased from
+ * it, so an oversized request waits rather than failing.
+ * <P>
+ * Sizes are estimates of the large per-block arrays a codec allocates,
+ * not exact heap accounting; the fixed buffers in a HuffContext and in
+ * bit streams are small and not counted.
+ */
+
+public class HuffBudget {
+
+	public static final int MIN_BLOCK = 1 << 12;
+
+	private static final HuffBudget ourGlobal =
+			new HuffBudget(Runtime.getRuntime().maxMemory() / 2, null);
+
+	private final HuffBudget myParent;
+	private long myLimit;
+	private long myUsed;
+
+	/**
+	 * Leased memory, returned to its budget by close().
+	 */
+	public class Lease implements AutoCloseable {
+		private final long mySize;
+		private boolean myClosed;
+
+		private Lease(long size) {
+			mySize = size;
+		}
+
+		@Override
+		public void close() {
+			if (!myClosed) {
+				myClosed = true;
+				release(mySize);
+			}
+		}
+	}
+
+	/**
+	 * Make a budget for one codec that also draws on global().
+	 * @param limit is the most bytes leased at once
+	 */
+	public HuffBudget(long limit) {
+		this(limit, ourGlobal);
+	}
+
+	private HuffBudget(long limit, HuffBudget parent) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("bad limit " + limit);
+		}
+		myLimit = limit;
+		myParent = parent;
+	}
+
+	/**
+	 * @return the budget shared by every codec in this JVM, initially
+	 * half the maximum heap
+	 */
+	public static HuffBudget global() {
+		return ourGlobal;
+	}
+
+	/**
+	 * Change the limit. Leases already granted are kept; waiting ones
+	 * are rechecked.
+	 */
+	public synchronized void setLimit(long limit) {
+		if (limit < 1) {
+			throw new IllegalArgumentException("bad limit " + limit);
+		}
+		myLimit = limit;
+		notifyAll();
+	}
+
+	/**
+	 * @return the smallest limit along the chain of budgets
+	 */
+	public synchronized long limit() {
+		return myParent == null ? myLimit : Math.min(myLimit, myParent.limit());
+	}
+
+	/**
+	 * @return bytes currently leased from this budget
+	 */
+	public synchronized long used() {
+		return myUsed;
+	}
+
+	/**
+	 * Lease bytes, waiting until they fit this budget and every budget
+	 * it draws on. Use with try-with-resources.
+	 * @throws HuffException if interrupted while waiting
+	 */
+	public Lease lease(long bytes) {
+		acquire(bytes);
+		return new Lease(bytes);
+	}
+
+	/**
+	 * Largest power-of-two block size, at most preferred and at least
+	 * MIN_BLOCK, whose working memory fits the limit.
+	 * @param preferred is the block size used when memory is plentiful
+	 * @param bytesPerByte is working memory needed per byte of block
+	 */
+	public int blockSize(int preferred, int bytesPerByte) {
+		long fits = limit() / bytesPerByte;
+		int size = preferred;
+		while (size > MIN_BLOCK && size > fits) {
+			size >>>= 1;
+		}
+		return size;
+	}
+
+	/**
+	 * @param requested is the number of workers wanted
+	 * @param perWorker is the memory each worker leases at most
+	 * @return requested, reduced so every worker's lease fits at once,
+	 * but at least 1
+	 */
+	public int workers(int requested, long perWorker) {
+		return (int) Math.max(1, Math.min(requested, limit() / perWorker));
+	}
+
+	private void acquire(long bytes) {
+		synchronized (this) {
+			try {
+				while (myUsed > 0 && myUsed + bytes > myLimit) {
+					wait();
+				}
+			}
+			catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new HuffException("interrupted waiting for memory");
+			}
+			myUsed += bytes;
+		}
+		if (myParent != null) {
+			try {
+				myParent.acquire(bytes);
+			}
+			catch (RuntimeException e) {
+				releaseOwn(bytes);
+				throw e;
+			}
+		}
+	}
+
+	private void release(long bytes) {
+		releaseOwn(bytes);
+		if (myParent != null) {
+			myParent.release(bytes);
+		}
+	}
+
+	private synchronized void releaseOwn(long bytes) {
+		myUsed -= bytes;
+		notifyAll();
+	}
+}
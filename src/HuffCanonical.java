@@ -0,0 +1,239 @@
+import java.util.*;
+
+/**
+ * Canonical Huffman codes over the ALPH_SIZE + 1 symbols (bytes plus
+ * PSEUDO_EOF). A canonical code is determined by its code lengths
+ * alone, so a header only needs the lengths instead of the tree shape,
+ * and lengths are limited to MAX_LENGTH bits so codes fit a single
+ * peekBits call.
+ * <P>
+ * One instance holds one code: lengths, codes, and the decoding
+ * structures, all sized once and rebuilt in place.
+ * A single-symbol code has length 0 for that symbol; it is implied and
+ * takes no bits to encode or decode.
+ */
+
+public class HuffCanonical {
+
+	public static final int SYMBOLS = HuffProcessor.ALPH_SIZE + 1;
+	public static final int MAX_LENGTH = 16;
+	public static final int LOOKUP_BITS = 8;
+
+	private static final int LENGTH_BITS = 4;
+
+	final int[] lengths = new int[SYMBOLS];
+	final int[] codes = new int[SYMBOLS];
+
+	private final int[] myLookup = new int[1 << LOOKUP_BITS];
+	private final int[] mySorted = new int[SYMBOLS];
+	private final int[] myFirst = new int[MAX_LENGTH + 1];
+	private final int[] myCount = new int[MAX_LENGTH + 1];
+	private final int[] myIndex = new int[MAX_LENGTH + 1];
+	private int mySingle;
+
+	/**
+	 * Make a length-limited Huffman code for counts. Symbols with a
+	 * zero count get no code.
+	 * @param counts has SYMBOLS entries starting at offset, at least one nonzero
+	 * @param tree is scratch space, shared by all codes of one owner
+	 */
+	public void build(int[] counts, int offset, HuffTree tree) {
+		int[] scaled = Arrays.copyOfRange(counts, offset, offset + SYMBOLS);
+		while (true) {
+			Arrays.fill(lengths, 0);
+			int max = treeLengths(scaled, lengths, tree);
+			if (max <= MAX_LENGTH) break;
+			// flatten the distribution until the deepest code fits
+			for (int k = 0; k < SYMBOLS; k++) {
+				if (scaled[k] > 0) scaled[k] = (scaled[k] >>> 1) | 1;
+			}
+		}
+		assignCodes();
+	}
+
+	/**
+	 * Total bits needed to code counts with this code, not counting
+	 * the header.
+	 */
+	public long cost(int[] counts, int offset) {
+		long bits = 0;
+		for (int k = 0; k < SYMBOLS; k++) {
+			bits += (long) counts[offset + k] * lengths[k];
+		}
+		return bits;
+	}
+
+	/**
+	 * @return number of bits writeHeader will write
+	 */
+	public int headerBits() {
+		if (mySingle >= 0) return 1 + HuffProcessor.BITS_PER_WORD + 1;
+		int bits = 1 + SYMBOLS;
+		for (int k = 0; k < SYMBOLS; k++) {
+			if (lengths[k] > 0) bits += LENGTH_BITS;
+		}
+		return bits;
+	}
+
+	/**
+	 * Write the code lengths: a 1 bit and 9-bit symbol for a
+	 * single-symbol code, otherwise a 0 bit and, for every symbol, a
+	 * presence bit followed by length-1 in 4 bits when present.
+	 */
+	public void writeHeader(BitOutputStream out) {
+		if (mySingle >= 0) {
+			out.writeBits(1, 1);
+			out.writeBits(HuffProcessor.BITS_PER_WORD + 1, mySingle);
+			return;
+		}
+		out.writeBits(1, 0);
+		for (int k = 0; k < SYMBOLS; k++) {
+			if (lengths[k] == 0) {
+				out.writeBits(1, 0);
+			}
+			else {
+				out.writeBits(1 + LENGTH_BITS, (1 << LENGTH_BITS) | (lengths[k] - 1));
+			}
+		}
+	}
+
+	/**
+	 * Read lengths written by writeHeader and rebuild codes and
+	 * decoding structures.
+	 * @throws HuffException if the input ends or the lengths do not
+	 * form a complete prefix code
+	 */
+	public void readHeader(BitInputStream in) {
+		Arrays.fill(lengths, 0);
+		int single = in.readBits(1);
+		if (single == -1) {
+			throw new HuffException("header ends early");
+		}
+		if (single == 1) {
+			int symbol = in.readBits(HuffProcessor.BITS_PER_WORD + 1);
+			if (symbol < 0 || symbol >= SYMBOLS) {
+				throw new HuffException("bad symbol in header " + symbol);
+			}
+			assignCodes();
+			mySingle = symbol;
+			return;
+		}
+		for (int k = 0; k < SYMBOLS; k++) {
+			int present = in.readBits(1);
+			if (present == -1) {
+				throw new HuffException("header ends early");
+			}
+			if (present == 1) {
+				lengths[k] = in.readBits(LENGTH_BITS) + 1;
+			}
+		}
+		// check before assigning, over-subscribed lengths overflow the lookup
+		long kraft = 0;
+		for (int k = 0; k < SYMBOLS; k++) {
+			if (lengths[k] > 0) kraft += 1L << (MAX_LENGTH - lengths[k]);
+		}
+		if (kraft != 1L << MAX_LENGTH) {
+			throw new HuffException("code lengths do not form a complete code");
+		}
+		assignCodes();
+		mySingle = -1;
+	}
+
+	/**
+	 * @return the only symbol when the code has just one, coded with
+	 * no bits, otherwise -1
+	 */
+	int single() {
+		return mySingle;
+	}
+
+	/**
+	 * Write the code for symbol, nothing for a single-symbol code.
+	 */
+	public void write(int symbol, BitOutputStream out) {
+		int length = lengths[symbol];
+		if (length > 0) {
+			out.writeBits(length, codes[symbol]);
+		}
+	}
+
+	/**
+	 * Read one symbol, using the lookup table for short codes.
+	 * @return the symbol decoded
+	 * @throws HuffException if the input ends inside a code
+	 */
+	public int read(BitInputStream in) {
+		if (mySingle >= 0) return mySingle;
+		int peek = in.peekBits(MAX_LENGTH);
+		if (peek == -1) {
+			throw new HuffException("bad input, no PSEUDO_EOF");
+		}
+		int entry = myLookup[peek >>> (MAX_LENGTH - LOOKUP_BITS)];
+		int length = entry >>> 16;
+		int symbol = entry & 0xffff;
+		if (length == 0) {
+			for (length = LOOKUP_BITS + 1; length <= MAX_LENGTH; length++) {
+				int offset = (peek >>> (MAX_LENGTH - length)) - myFirst[length];
+				if (offset >= 0 && offset < myCount[length]) {
+					symbol = mySorted[myIndex[length] + offset];
+					break;
+				}
+			}
+			if (length > MAX_LENGTH) {
+				throw new HuffException("bad input, no code matches");
+			}
+		}
+		if (!in.skipBits(length)) {
+			throw new HuffException("bad input, no PSEUDO_EOF");
+		}
+		return symbol;
+	}
+
+	// canonical codes from lengths: shorter codes first, ties by symbol
+	private void assignCodes() {
+		Arrays.fill(myCount, 0);
+		Arrays.fill(codes, 0);
+		for (int k = 0; k < SYMBOLS; k++) {
+			if (lengths[k] > 0) myCount[lengths[k]]++;
+		}
+		int code = 0, index = 0;
+		for (int len = 1; len <= MAX_LENGTH; len++) {
+			code = (code + myCount[len - 1]) << 1;
+			myFirst[len] = code;
+			myIndex[len] = index;
+			index += myCount[len];
+		}
+		int[] next = Arrays.copyOf(myFirst, MAX_LENGTH + 1);
+		int[] slot = Arrays.copyOf(myIndex, MAX_LENGTH + 1);
+		for (int k = 0; k < SYMBOLS; k++) {
+			int len = lengths[k];
+			if (len == 0) continue;
+			codes[k] = next[len]++;
+			mySorted[slot[len]++] = k;
+		}
+
+		Arrays.fill(myLookup, 0);
+		for (int k = 0; k < SYMBOLS; k++) {
+			int len = lengths[k];
+			if (len == 0 || len > LOOKUP_BITS) continue;
+			int start = codes[k] << (LOOKUP_BITS - len);
+			int entry = (len << 16) | k;
+			for (int j = 0; j < 1 << (LOOKUP_BITS - len); j++) {
+				myLookup[start + j] = entry;
+			}
+		}
+	}
+
+	// plain Huffman code lengths from a tree over the nonzero counts,
+	// returns the longest length
+	private int treeLengths(int[] counts, int[] result, HuffTree tree) {
+		tree.fromCounts(counts);
+		mySingle = HuffTree.isLeaf(tree.root()) ? HuffTree.symbol(tree.root()) : -1;
+		tree.codes(null, result);
+		int max = 0;
+		for (int length : result) {
+			max = Math.max(max, length);
+		}
+		return max;
+	}
+}
@@ -0,0 +1,81 @@
+import java.nio.*;
+import java.util.*;
+
+/**
+ * Reusable working state for one compress or decompress call. A
+ * HuffProcessor keeps no per-file state of its own; everything that
+ * used to be allocated per call (counts, tree, code tables, buffers)
+ * lives here instead and is cleared by reset().
+ * <P>
+ * A context may be used by only one thread at a time. The simplest way
+ * to get one is local(), which hands out one context per thread; callers
+ * that manage their own worker threads can also keep a pool of contexts
+ * and pass one explicitly to compress/decompress.
+ */
+
+public class HuffContext {
+
+	private static final ThreadLocal<HuffContext> ourLocal =
+			ThreadLocal.withInitial(HuffContext::new);
+
+	final long[] counts = new long[HuffProcessor.ALPH_SIZE + 1];
+	final long[] codes = new long[HuffProcessor.ALPH_SIZE + 1];
+	final int[] lengths = new int[HuffProcessor.ALPH_SIZE + 1];
+	final int[] table = new int[HuffTable.TABLE_SIZE];
+	final byte[] bytes = new byte[8192];
+	final HuffTree tree = new HuffTree();
+
+	// buffers for the bit streams codecs open themselves: one pair for
+	// a whole file or archive member, one for a block or header inside it
+	final ByteBuffer fileRead = ByteBuffer.allocate(BitInputStream.BUFFER_SIZE);
+	final ByteBuffer fileWrite = ByteBuffer.allocate(BitOutputStream.BUFFER_SIZE);
+	final ByteBuffer blockRead = ByteBuffer.allocate(BitInputStream.BUFFER_SIZE);
+	final ByteBuffer blockWrite = ByteBuffer.allocate(BitOutputStream.BUFFER_SIZE);
+
+	private HuffOrder1 myOrder1;
+	private HuffBlocks myBlocks;
+
+	/**
+	 * Returns the context owned by the calling thread, reset and
+	 * ready for use.
+	 * @return this thread's context
+	 */
+	public static HuffContext local() {
+		HuffContext ctx = ourLocal.get();
+		ctx.reset();
+		return ctx;
+	}
+
+	/**
+	 * Clear all state left over from a previous call so this context
+	 * can be used for another file. Does not allocate. The tree and
+	 * decode table are not cleared, they are completely rebuilt
+	 * whenever they are used.
+	 */
+	public void reset() {
+		Arrays.fill(counts, 0);
+		Arrays.fill(codes, 0);
+		Arrays.fill(lengths, 0);
+	}
+
+	/**
+	 * Working state for the ORDER_1 option, created on first use since
+	 * it is much larger than everything else here.
+	 */
+	HuffOrder1 order1() {
+		if (myOrder1 == null) {
+			myOrder1 = new HuffOrder1();
+		}
+		return myOrder1;
+	}
+
+	/**
+	 * Working state for the TRANSFORM option, created on first use.
+	 */
+	HuffBlocks blocks() {
+		if (myBlocks == null) {
+			myBlocks = new HuffBlocks();
+		}
+		return myBlocks;
+	}
+}
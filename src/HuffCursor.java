@@ -0,0 +1,263 @@
+import java.io.*;
+import java.nio.*;
+
+/**
+ * Decodes a compressed file a piece at a time into buffers the caller
+ * supplies, for previews and format sniffing that need only the start
+ * of a file. Each read decodes only as many symbols as fit, and the
+ * cursor keeps everything needed to go on later: the input's bit
+ * position, the member and format being decoded, its codes, the
+ * order-1 context, and any decoded bytes that did not fit.
+ * <P>
+ * Reads all formats and multi-member files, like
+ * HuffProcessor.decompress. A TRANSFORM block is decoded whole the
+ * first time any of it is read, since its transforms can only be undone
+ * together. A cursor has its own HuffContext and is not thread-safe.
+ */
+
+public class HuffCursor implements Closeable {
+
+	private static final int START = 0;
+	private static final int TREE = 1;
+	private static final int ORDER1 = 2;
+	private static final int BLOCKS = 3;
+	private static final int END = 4;
+
+	private final HuffProcessor myProcessor;
+	private final BitInputStream myIn;
+	private final HuffContext myContext = new HuffContext();
+	private final boolean myTable;
+
+	private int myState = START;
+	private boolean myStarted;
+	private boolean myAdaptive;
+	private int myPrev;
+	private long myPosition;
+
+	// decoded bytes not yet handed out: the rest of a table entry or of
+	// a TRANSFORM block
+	private byte[] myPending = new byte[0];
+	private int myPendingStart, myPendingEnd;
+	private final byte[] myCarry = new byte[HuffTable.MAX_SYMBOLS];
+
+	HuffCursor(HuffProcessor processor, BitInputStream in, boolean table) {
+		myProcessor = processor;
+		myIn = in;
+		myTable = table;
+	}
+
+	/**
+	 * Decode up to length bytes into dest. With a processor made by
+	 * withLimits, each step decodes at most one byte past what the
+	 * limits allow at that point, so a large dest does not let hostile
+	 * input run on.
+	 * @return number of bytes decoded, or -1 if the file has ended
+	 * @throws HuffException if the input is malformed or the output
+	 * exceeds the processor's limits
+	 */
+	public int read(byte[] dest, int offset, int length) {
+		if (offset < 0 || length < 0 || offset + length > dest.length) {
+			throw new IndexOutOfBoundsException("offset " + offset + ", length " + length);
+		}
+		int done = 0;
+		while (done < length) {
+			long allowed = myProcessor.outputLimit(myIn) / HuffProcessor.BITS_PER_WORD - myPosition - done;
+			if (allowed < 0) {
+				throw new HuffException("output exceeds limit after " + (myPosition + done) + " bytes");
+			}
+			int room = (int) Math.min(length - done, allowed + 1);
+			if (myPendingStart < myPendingEnd) {
+				int count = Math.min(room, myPendingEnd - myPendingStart);
+				System.arraycopy(myPending, myPendingStart, dest, offset + done, count);
+				myPendingStart += count;
+				done += count;
+				continue;
+			}
+			if (myState == END) break;
+			if (myState == START) {
+				startMember();
+			}
+			else if (myState == TREE) {
+				done += readTree(dest, offset + done, room);
+			}
+			else if (myState == ORDER1) {
+				done += readOrder1(dest, offset + done, room);
+			}
+			else {
+				readBlock();
+			}
+		}
+		if (myPosition + done > myProcessor.outputLimit(myIn) / HuffProcessor.BITS_PER_WORD) {
+			throw new HuffException("output exceeds limit after " + (myPosition + done) + " bytes");
+		}
+		myPosition += done;
+		return done == 0 && length > 0 ? -1 : done;
+	}
+
+	/**
+	 * Decode into dest from its position up to its limit, or until the
+	 * file ends.
+	 * @return number of bytes decoded, or -1 if the file has ended
+	 */
+	public int read(ByteBuffer dest) {
+		if (dest.hasArray()) {
+			int read = read(dest.array(), dest.arrayOffset() + dest.position(), dest.remaining());
+			if (read > 0) dest.position(dest.position() + read);
+			return read;
+		}
+		byte[] bytes = new byte[Math.min(dest.remaining(), HuffBlocks.BLOCK_SIZE)];
+		int done = 0;
+		while (dest.hasRemaining()) {
+			int read = read(bytes, 0, Math.min(bytes.length, dest.remaining()));
+			if (read == -1) break;
+			dest.put(bytes, 0, read);
+			done += read;
+		}
+		return done == 0 && bytes.length > 0 ? -1 : done;
+	}
+
+	/**
+	 * @return number of decoded bytes returned so far
+	 */
+	public long position() {
+		return myPosition;
+	}
+
+	/**
+	 * @return number of compressed bits consumed so far
+	 */
+	public long bitPosition() {
+		return myIn.bitPosition();
+	}
+
+	@Override
+	public void close() {
+		myIn.close();
+	}
+
+	// read a member's magic number and header, or notice the end of input
+	private void startMember() {
+		if (myStarted) {
+			myIn.alignToByte();
+			if (myIn.peekBits(HuffProcessor.BITS_PER_WORD) == -1) {
+				myState = END;
+				return;
+			}
+		}
+		myStarted = true;
+		HuffContext ctx = myContext;
+		ctx.reset();
+		int bits = myIn.readBits(HuffProcessor.BITS_PER_INT);
+		if (bits == HuffProcessor.HUFF_TREE) {
+			ctx.tree.readHeader(myIn);
+			// a lone PSEUDO_EOF leaf means an empty member
+			if (HuffTree.isLeaf(ctx.tree.root())) return;
+			if (myTable) {
+				HuffTable.build(ctx.tree, ctx.table);
+			}
+			myState = TREE;
+		}
+		else if (bits == HuffProcessor.HUFF_ORDER1) {
+			ctx.order1().readCodes(myIn);
+			myPrev = 0;
+			myState = ORDER1;
+		}
+		else if (bits == HuffProcessor.HUFF_BLOCKS || bits == HuffProcessor.HUFF_ADAPTIVE) {
+			myAdaptive = bits == HuffProcessor.HUFF_ADAPTIVE;
+			myState = BLOCKS;
+		}
+		else {
+			throw new HuffException("illegal header starts with " + bits);
+		}
+	}
+
+	// decode HUFF_TREE symbols into dest until it is full or the member ends
+	private int readTree(byte[] dest, int offset, int length) {
+		HuffTree tree = myContext.tree;
+		int[] table = myContext.table;
+		myPendingStart = myPendingEnd = 0;
+		int done = 0;
+		while (done < length) {
+			if (!myTable) {
+				int value = HuffProcessor.readSymbol(tree, myIn);
+				if (value == HuffProcessor.PSEUDO_EOF) {
+					myState = START;
+					break;
+				}
+				dest[offset + done++] = (byte) value;
+				continue;
+			}
+			int peek = myIn.peekBits(HuffTable.TABLE_BITS);
+			if (peek == -1) {
+				throw new HuffException("bad input, no PSEUDO_EOF");
+			}
+			int entry = table[peek];
+			int count = HuffTable.count(entry);
+			if (count == 0 && !HuffTable.isEOF(entry)) {
+				int value = HuffProcessor.readSymbol(tree, myIn);
+				if (value == HuffProcessor.PSEUDO_EOF) {
+					myState = START;
+					break;
+				}
+				dest[offset + done++] = (byte) value;
+				continue;
+			}
+			if (!myIn.skipBits(HuffTable.used(entry))) {
+				throw new HuffException("bad input, no PSEUDO_EOF");
+			}
+			if (count == 0) {
+				myState = START;
+				break;
+			}
+			int symbols = HuffTable.symbols(entry);
+			for (int k = count - 1; k >= 0; k--) {
+				byte value = (byte) (symbols >>> (k * HuffProcessor.BITS_PER_WORD));
+				if (done < length) {
+					dest[offset + done++] = value;
+				}
+				else {
+					myCarry[myPendingEnd++] = value;
+				}
+			}
+			if (myPendingEnd > 0) {
+				myPending = myCarry;
+				myPendingStart = 0;
+			}
+		}
+		return done;
+	}
+
+	// decode order-1 symbols into dest until it is full or the member ends
+	private int readOrder1(byte[] dest, int offset, int length) {
+		HuffOrder1 order1 = myContext.order1();
+		int done = 0;
+		while (done < length) {
+			int symbol = order1.readSymbol(myIn, myPrev);
+			if (symbol == HuffProcessor.PSEUDO_EOF) {
+				myState = START;
+				break;
+			}
+			dest[offset + done++] = (byte) symbol;
+			myPrev = symbol;
+		}
+		return done;
+	}
+
+	// decode the next TRANSFORM block into the pending bytes
+	@SuppressWarnings("try")
+	private void readBlock() {
+		int more = myIn.readBits(1);
+		if (more == -1) {
+			throw new HuffException("bad input, blocks not terminated");
+		}
+		if (more == 0) {
+			myState = START;
+			return;
+		}
+		try (HuffBudget.Lease lease = myProcessor.budget().lease(HuffBlocks.DECODE_LEASE)) {
+			myPending = myContext.blocks().readBlock(myProcessor, myIn, myContext, myAdaptive);
+		}
+		myPendingStart = 0;
+		myPendingEnd = myPending.length;
+	}
+}
@@ -0,0 +1,161 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Dry-run size estimates for order-0 compression: how many bits
+ * HuffProcessor.compress would write, without building codes or
+ * writing anything. The exact estimate is one counting pass over the
+ * input; the sampled estimate reads only a fraction of a file.
+ * <P>
+ * The cost of a Huffman code is the sum of the weights of all internal
+ * tree nodes, so only the merge weights are needed, not the tree.
+ */
+
+public class HuffEstimator {
+
+	public static final int SAMPLE_BLOCK = 1 << 16;
+
+	private static final int BUFFER_SIZE = 8192;
+
+	/**
+	 * Add byte counts from in to counts, reading in bulk.
+	 * @param counts has at least ALPH_SIZE entries
+	 * @param buffer is scratch space, any non-zero length
+	 * @return counts
+	 */
+	public static long[] count(BitInputStream in, long[] counts, byte[] buffer) {
+		while (true) {
+			int read = in.readBytes(buffer, 0, buffer.length);
+			if (read == -1) break;
+			for (int k = 0; k < read; k++) {
+				counts[buffer[k] & 0xff]++;
+			}
+		}
+		return counts;
+	}
+
+	/**
+	 * Exact number of bits compress writes for input with these
+	 * counts: magic number, tree header, and coded data. Past 2^31
+	 * bytes compress scales its counts down (see HuffTree) and may
+	 * write slightly more than this optimal size.
+	 * @param counts has ALPH_SIZE + 1 entries, PSEUDO_EOF included
+	 */
+	public static long compressedBits(long[] counts) {
+		return scaledBits(counts, 1);
+	}
+
+	/**
+	 * Bits an order-0 Huffman coder would write for symbols of
+	 * symbolBits bits with these counts, laid out like compress: magic
+	 * number, a tree header whose leaves hold symbolBits + 1 bits, and
+	 * the coded data ending with one PSEUDO_EOF. For symbolBits of
+	 * BITS_PER_WORD this is what compress writes. Counts are longs so
+	 * histograms merged over many files do not overflow.
+	 * @param counts has one entry per symbol, PSEUDO_EOF not included
+	 */
+	public static long compressedBits(long[] counts, int symbolBits) {
+		long[] weights = new long[counts.length + 1];
+		int leaves = 0;
+		for (long count : counts) {
+			if (count > 0) weights[leaves++] = count;
+		}
+		weights[leaves++] = 1;
+		long header = (leaves - 1) + leaves * (symbolBits + 2L);
+		return HuffProcessor.BITS_PER_INT + header + treeCost(weights, leaves);
+	}
+
+	/**
+	 * Exact number of bits compress would write for in, as for
+	 * compressedBits. Reads in to the end without resetting it.
+	 */
+	public static long estimate(BitInputStream in) {
+		long[] counts = count(in, new long[HuffProcessor.ALPH_SIZE], new byte[BUFFER_SIZE]);
+		return compressedBits(counts, HuffProcessor.BITS_PER_WORD);
+	}
+
+	/**
+	 * Estimate of the bits compress would write for file, from evenly
+	 * spaced SAMPLE_BLOCK-byte blocks covering about fraction of it.
+	 * Small files, or a fraction of 1, are counted exactly.
+	 * @param fraction is on (0, 1]
+	 */
+	public static long estimate(File file, double fraction) {
+		if (fraction <= 0 || fraction > 1) {
+			throw new IllegalArgumentException("fraction must be on (0, 1]: " + fraction);
+		}
+		try (FileChannel channel = FileChannel.open(file.toPath())) {
+			long size = channel.size();
+			long blocks = (size + SAMPLE_BLOCK - 1) / SAMPLE_BLOCK;
+			long wanted = Math.max(1, (long) Math.ceil(blocks * fraction));
+			if (wanted >= blocks) {
+				return estimate(new BitInputStream(Channels.newInputStream(channel), 0));
+			}
+
+			long[] counts = new long[HuffProcessor.ALPH_SIZE + 1];
+			ByteBuffer buffer = ByteBuffer.allocate(SAMPLE_BLOCK);
+			long sampled = 0;
+			for (long b = 0; b < wanted; b++) {
+				long position = (b * blocks / wanted) * SAMPLE_BLOCK;
+				buffer.clear();
+				while (buffer.hasRemaining()) {
+					int read = channel.read(buffer, position + buffer.position());
+					if (read == -1) break;
+				}
+				byte[] bytes = buffer.array();
+				for (int k = 0; k < buffer.position(); k++) {
+					counts[bytes[k] & 0xff]++;
+				}
+				sampled += buffer.position();
+			}
+			counts[HuffProcessor.PSEUDO_EOF] = 1;
+			return scaledBits(counts, (double) size / sampled);
+		}
+		catch (IOException io) {
+			throw new RuntimeException(io);
+		}
+	}
+
+	/**
+	 * Like compressedBits, but with the coded data scaled for counts
+	 * taken from a sample of scale times less data than will be coded.
+	 * Symbols missing from the sample are not charged.
+	 */
+	static long scaledBits(long[] counts, double scale) {
+		long[] weights = new long[counts.length];
+		int leaves = 0;
+		for (long count : counts) {
+			if (count > 0) weights[leaves++] = count;
+		}
+		// internal nodes take 1 bit, leaves 1 + BITS_PER_WORD + 1
+		long header = (leaves - 1) + leaves * (HuffProcessor.BITS_PER_WORD + 2L);
+		long data = scale == 1 ? treeCost(weights, leaves) : Math.round(treeCost(weights, leaves) * scale);
+		return HuffProcessor.BITS_PER_INT + header + data;
+	}
+
+	// sum of internal node weights of a Huffman tree over the first n
+	// weights, using the two-queue method on sorted leaves
+	private static long treeCost(long[] weights, int n) {
+		if (n < 2) return 0;
+		Arrays.sort(weights, 0, n);
+		long[] merged = new long[n - 1];
+		int leaf = 0, head = 0, tail = 0;
+		long cost = 0;
+		for (int k = 0; k < n - 1; k++) {
+			long sum = 0;
+			for (int pick = 0; pick < 2; pick++) {
+				if (leaf < n && (head == tail || weights[leaf] <= merged[head])) {
+					sum += weights[leaf++];
+				}
+				else {
+					sum += merged[head++];
+				}
+			}
+			merged[tail++] = sum;
+			cost += sum;
+		}
+		return cost;
+	}
+}
@@ -0,0 +1,217 @@
+import java.util.*;
+
+/**
+ * Order-1 context model: each byte is coded with a Huffman code chosen
+ * by the byte before it (the first byte uses context 0). Contexts seen
+ * often enough to pay for their own header get their own canonical
+ * code; all other contexts share one code built from their combined
+ * counts, which bounds the header on small or sparse input.
+ * <P>
+ * Format after the HUFF_ORDER1 magic number:
+ * <ul>
+ * <li>one bit per context, 1 if the context has its own code
+ * <li>the shared code, as written by HuffCanonical.writeHeader
+ * <li>each context's own code, in context order
+ * <li>the coded bytes, then PSEUDO_EOF coded in the last byte's context
+ * </ul>
+ * Instances are reusable working state, normally owned by a HuffContext.
+ */
+
+public class HuffOrder1 {
+
+	public static final int CONTEXTS = HuffProcessor.ALPH_SIZE;
+
+	private static final int SYMBOLS = HuffCanonical.SYMBOLS;
+
+	private final int[] myCounts = new int[CONTEXTS * SYMBOLS];
+	private final int[] myShared = new int[SYMBOLS];
+	private final HuffCanonical mySharedCode = new HuffCanonical();
+	private final HuffCanonical[] myOwnCodes = new HuffCanonical[CONTEXTS];
+	private final HuffCanonical[] myCodes = new HuffCanonical[CONTEXTS];
+	private final HuffTree myTree = new HuffTree();
+
+	/**
+	 * Compress in to out, reading in twice. Does not close out.
+	 */
+	public void compress(BitInputStream in, BitOutputStream out) {
+		out.writeBits(HuffProcessor.BITS_PER_INT, HuffProcessor.HUFF_ORDER1);
+		writeBody(in, out);
+	}
+
+	/**
+	 * Write everything compress does after the magic number, the part
+	 * decompress reads.
+	 */
+	void writeBody(BitInputStream in, BitOutputStream out) {
+		Arrays.fill(myCounts, 0);
+		int prev = 0;
+		while (true) {
+			int bits = in.readBits(HuffProcessor.BITS_PER_WORD);
+			if (bits == -1) break;
+			myCounts[prev * SYMBOLS + bits]++;
+			prev = bits;
+		}
+		myCounts[prev * SYMBOLS + HuffProcessor.PSEUDO_EOF]++;
+		chooseCodes();
+
+		for (int c = 0; c < CONTEXTS; c++) {
+			out.writeBits(1, myCodes[c] == mySharedCode ? 0 : 1);
+		}
+		mySharedCode.writeHeader(out);
+		for (int c = 0; c < CONTEXTS; c++) {
+			if (myCodes[c] != mySharedCode) myCodes[c].writeHeader(out);
+		}
+
+		in.reset();
+		prev = 0;
+		while (true) {
+			int bits = in.readBits(HuffProcessor.BITS_PER_WORD);
+			if (bits == -1) break;
+			myCodes[prev].write(bits, out);
+			prev = bits;
+		}
+		myCodes[prev].write(HuffProcessor.PSEUDO_EOF, out);
+	}
+
+	/**
+	 * Decompress in to out; the magic number has already been read.
+	 * Does not close out.
+	 * @throws HuffException if the header or coded bits are malformed
+	 */
+	public void decompress(BitInputStream in, BitOutputStream out) {
+		readCodes(in);
+		int prev = 0;
+		while (true) {
+			int symbol = readSymbol(in, prev);
+			if (symbol == HuffProcessor.PSEUDO_EOF) break;
+			out.writeBits(HuffProcessor.BITS_PER_WORD, symbol);
+			prev = symbol;
+		}
+	}
+
+	/**
+	 * Read the context flags and codes that follow the magic number.
+	 * @throws HuffException if the codes would decode forever without
+	 * reading input: a context whose code has a single byte symbol
+	 * leads to that byte's context, and a chain of such contexts must
+	 * end, as it always does in compressed data
+	 */
+	void readCodes(BitInputStream in) {
+		boolean[] own = new boolean[CONTEXTS];
+		for (int c = 0; c < CONTEXTS; c++) {
+			int bit = in.readBits(1);
+			if (bit == -1) {
+				throw new HuffException("header ends early");
+			}
+			own[c] = bit == 1;
+		}
+		mySharedCode.readHeader(in);
+		for (int c = 0; c < CONTEXTS; c++) {
+			if (own[c]) {
+				ownCode(c).readHeader(in);
+				myCodes[c] = myOwnCodes[c];
+			}
+			else {
+				myCodes[c] = mySharedCode;
+			}
+		}
+		for (int c = 0; c < CONTEXTS; c++) {
+			int next = c;
+			for (int steps = 0; myCodes[next].single() >= 0; steps++) {
+				next = myCodes[next].single();
+				if (next == HuffProcessor.PSEUDO_EOF) break;
+				if (steps == CONTEXTS) {
+					throw new HuffException("bad input, contexts decode without end");
+				}
+			}
+		}
+	}
+
+	/**
+	 * Decode one symbol, possibly PSEUDO_EOF, with the codes read by
+	 * readCodes.
+	 * @param prev is the byte before it, 0 for the first
+	 */
+	int readSymbol(BitInputStream in, int prev) {
+		return myCodes[prev].read(in);
+	}
+
+	/**
+	 * Bits writeBody would write for the first length bytes of data,
+	 * found by choosing codes without writing anything. For data that
+	 * is a sample, scale is how many times more data will be coded;
+	 * the coded bits are scaled by it and the headers are not.
+	 */
+	long estimate(byte[] data, int length, double scale) {
+		Arrays.fill(myCounts, 0);
+		int prev = 0;
+		for (int k = 0; k < length; k++) {
+			int bits = data[k] & 0xff;
+			myCounts[prev * SYMBOLS + bits]++;
+			prev = bits;
+		}
+		myCounts[prev * SYMBOLS + HuffProcessor.PSEUDO_EOF]++;
+		chooseCodes();
+
+		long header = CONTEXTS + mySharedCode.headerBits();
+		long coded = 0;
+		for (int c = 0; c < CONTEXTS; c++) {
+			if (myCodes[c] != mySharedCode) header += myCodes[c].headerBits();
+			coded += myCodes[c].cost(myCounts, c * SYMBOLS);
+		}
+		return header + Math.round(coded * scale);
+	}
+
+	// give a context its own code only when its header costs less
+	// than coding the context with the shared code
+	private void chooseCodes() {
+		Arrays.fill(myShared, 0);
+		for (int c = 0; c < CONTEXTS; c++) {
+			for (int k = 0; k < SYMBOLS; k++) {
+				myShared[k] += myCounts[c * SYMBOLS + k];
+			}
+		}
+		mySharedCode.build(myShared, 0, myTree);
+
+		for (int c = 0; c < CONTEXTS; c++) {
+			myCodes[c] = mySharedCode;
+			int offset = c * SYMBOLS;
+			if (!used(offset)) continue;
+			HuffCanonical code = ownCode(c);
+			code.build(myCounts, offset, myTree);
+			long ownCost = code.headerBits() + code.cost(myCounts, offset);
+			if (ownCost < mySharedCode.cost(myCounts, offset)) {
+				myCodes[c] = code;
+			}
+		}
+
+		Arrays.fill(myShared, 0);
+		boolean any = false;
+		for (int c = 0; c < CONTEXTS; c++) {
+			if (myCodes[c] != mySharedCode) continue;
+			for (int k = 0; k < SYMBOLS; k++) {
+				myShared[k] += myCounts[c * SYMBOLS + k];
+				any |= myCounts[c * SYMBOLS + k] > 0;
+			}
+		}
+		if (!any) {
+			// every used context has its own code, shared code is a placeholder
+			myShared[HuffProcessor.PSEUDO_EOF] = 1;
+		}
+		mySharedCode.build(myShared, 0, myTree);
+	}
+
+	private boolean used(int offset) {
+		for (int k = 0; k < SYMBOLS; k++) {
+			if (myCounts[offset + k] > 0) return true;
+		}
+		return false;
+	}
+
+	private HuffCanonical ownCode(int context) {
+		if (myOwnCodes[context] == null) {
+			myOwnCodes[context] = new HuffCanonical();
+		}
+		return myOwnCodes[context];
+	}
+}
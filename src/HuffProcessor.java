@@ -1,3 +1,4 @@
+import java.io.*;
 import java.util.*;
 
 /**
@@ -7,7 +8,20 @@ import java.util.*;
  * <P>
  * Changes include relying solely on a tree for header information
  * and including debug and bits read/written information
- * 
+ * <P>
+ * A HuffProcessor is immutable once constructed and may be shared
+ * freely between threads. All per-file working state lives in a
+ * HuffContext: the two-argument compress/decompress use the calling
+ * thread's context (HuffContext.local()), the three-argument versions
+ * use one supplied by the caller. A context must not be used by two
+ * calls at the same time. Bit streams are never shared.
+ * <P>
+ * Decoding validates headers as it reads them (see HuffTree.readHeader),
+ * so malformed input fails with a HuffException rather than running
+ * without end. For untrusted input, withLimits also caps how much a
+ * decode may write, checked as output buffers are emptied so the
+ * decoding loops run at full speed.
+ *
  * @author Owen Astrachan
  */
 
@@ -15,26 +29,127 @@ public class HuffProcessor {
 
 	public static final int BITS_PER_WORD = 8;
 	public static final int BITS_PER_INT = 32;
-	public static final int ALPH_SIZE = (1 << BITS_PER_WORD); 
+	public static final int ALPH_SIZE = (1 << BITS_PER_WORD);
 	public static final int PSEUDO_EOF = ALPH_SIZE;
 	public static final int HUFF_NUMBER = 0xface8200;
 	public static final int HUFF_TREE  = HUFF_NUMBER | 1;
+	public static final int HUFF_ORDER1 = HUFF_NUMBER | 2;
+	public static final int HUFF_BLOCKS = HUFF_NUMBER | 3;
+	public static final int HUFF_ARCHIVE = HUFF_NUMBER | 4;
+	public static final int HUFF_ADAPTIVE = HUFF_NUMBER | 5;
 
 	private final int myDebugLevel;
-	
+	private final int myOptions;
+	private final HuffBudget myBudget;
+	private final long myMaxOutput;
+	private final double myMaxRatio;
+
 	public static final int DEBUG_HIGH = 4;
 	public static final int DEBUG_LOW = 1;
-	
+
+	/**
+	 * Option: decode with a multi-symbol HuffTable instead of walking
+	 * the tree one bit at a time. Building the table costs a fixed
+	 * TABLE_SIZE lookups per file, so it pays off on all but tiny files.
+	 */
+	public static final int DECODE_TABLE = 1;
+
+	/**
+	 * Option: compress with an order-1 model (HuffOrder1), one code per
+	 * preceding byte. Decompression recognizes either format regardless
+	 * of options.
+	 */
+	public static final int ORDER_1 = 2;
+
+	/**
+	 * Option: split input into blocks and run each through the
+	 * reversible HuffTransform chain that makes it smallest (HuffBlocks)
+	 * before coding. Ignored when ORDER_1 is also set.
+	 */
+	public static final int TRANSFORM = 4;
+
+	/**
+	 * Option: choose transforms and coder block by block from trial
+	 * estimates (HuffTuner, smallest output). With debug at DEBUG_LOW or
+	 * more, the choices are printed. Ignored when ORDER_1 or TRANSFORM
+	 * is also set.
+	 */
+	public static final int ADAPTIVE = 8;
+
 	public HuffProcessor() {
 		this(0);
 	}
-	
+
 	public HuffProcessor(int debug) {
+		this(debug, 0);
+	}
+
+	/**
+	 * @param debug is the debug level
+	 * @param options is a bitwise-or of option flags such as DECODE_TABLE
+	 */
+	public HuffProcessor(int debug, int options) {
+		this(debug, options, HuffBudget.global());
+	}
+
+	/**
+	 * @param debug is the debug level
+	 * @param options is a bitwise-or of option flags such as DECODE_TABLE
+	 * @param budget is where block memory is leased from, so calls wait
+	 * instead of exceeding it
+	 */
+	public HuffProcessor(int debug, int options, HuffBudget budget) {
+		this(debug, options, budget, Long.MAX_VALUE, Double.POSITIVE_INFINITY);
+	}
+
+	private HuffProcessor(int debug, int options, HuffBudget budget, long maxOutput, double maxRatio) {
 		myDebugLevel = debug;
+		myOptions = options;
+		myBudget = budget;
+		myMaxOutput = maxOutput;
+		myMaxRatio = maxRatio;
+	}
+
+	/**
+	 * Make a processor like this one whose decoding stops with a
+	 * HuffException once it has written more than maxOutput bytes, or
+	 * more than maxRatio times the compressed bytes read so far. Each
+	 * cap may be overshot by one output buffer before it is noticed,
+	 * but the excess is never written to the output.
+	 * @param maxOutput is the most bytes decoded, Long.MAX_VALUE for no cap
+	 * @param maxRatio is the largest expansion allowed, infinity for no cap
+	 */
+	public HuffProcessor withLimits(long maxOutput, double maxRatio) {
+		if (maxOutput < 0 || !(maxRatio > 0)) {
+			throw new IllegalArgumentException("bad limits " + maxOutput + ", " + maxRatio);
+		}
+		return new HuffProcessor(myDebugLevel, myOptions, myBudget, maxOutput, maxRatio);
+	}
+
+	/**
+	 * @return the most output bits withLimits allows after reading in so
+	 * far, Long.MAX_VALUE when there are no limits
+	 */
+	long outputLimit(BitInputStream in) {
+		long bytes = myMaxOutput;
+		// checked first, since infinity times 0 bytes read is NaN
+		if (myMaxRatio != Double.POSITIVE_INFINITY) {
+			bytes = Math.min(bytes, (long) (myMaxRatio * (in.bitPosition() / BITS_PER_WORD)));
+		}
+		return bytes > Long.MAX_VALUE / BITS_PER_WORD ? Long.MAX_VALUE : bytes * BITS_PER_WORD;
+	}
+
+	private boolean limited() {
+		return myMaxOutput != Long.MAX_VALUE || myMaxRatio != Double.POSITIVE_INFINITY;
+	}
+
+	/**
+	 * @return the memory budget this processor's calls lease from
+	 */
+	public HuffBudget budget() {
+		return myBudget;
 	}
-	private String[] Codes;
-	private int b;
-	private int[] Count;
+
 	/**
 	 * Compresses a file. Process must be reversible and loss-less.
 	 *
@@ -43,203 +158,98 @@ public class HuffProcessor {
 	 * @param out
 	 *            Buffered bit stream writing to the output file.
 	 */
-	//follow pseudo-code given
-	public void compress(BitInputStream in, BitOutputStream out){
-
-		int[] counts = readForCounts(in, out);
-		HuffNode root = makeFromCounts(counts);
-		String[] codings = makeFromTree(root);
-		
-		out.writeBits(BITS_PER_INT, HUFF_TREE);
-		writeHeader(root, out);
-		
-		in.reset();
-		writeCompressedBits(codings, in, out);
-		out.close();
+	public void compress(BitInputStream in, BitOutputStream out) {
+		compress(in, out, HuffContext.local());
 	}
-	
-	
-	private int[] readForCounts(BitInputStream in, BitOutputStream out) {
-		int[] counts = new int[(ALPH_SIZE + 1)];
-		counts[PSEUDO_EOF] = 1;
-		
-		while(true) {			
-			int bits = in.readBits(BITS_PER_WORD);			
-			if (bits == -1) break;
-			counts[bits]++;
+
+	/**
+	 * Compresses a file using caller-supplied working state.
+	 *
+	 * @param in
+	 *            Buffered bit stream of the file to be compressed.
+	 * @param out
+	 *            Buffered bit stream writing to the output file.
+	 * @param ctx
+	 *            context used for this call only, reset before use
+	 */
+	//follow pseudo-code given
+	public void compress(BitInputStream in, BitOutputStream out, HuffContext ctx) {
+		ctx.reset();
+		if ((myOptions & ORDER_1) != 0) {
+			ctx.order1().compress(in, out);
 		}
-		return counts;
-	}
-	
-	
-	private HuffNode makeFromCounts(int[] counts) {
-		
-		PriorityQueue<HuffNode> pq = new PriorityQueue<>();
-
-		for(int i = 0; i < counts.length; i ++ ) {
-			if (counts[i] > 0) {
-				pq.add(new HuffNode(i, counts[i], null, null)); 
-			}  
+		else if ((myOptions & TRANSFORM) != 0) {
+			ctx.blocks().compress(this, in, out, ctx);
 		}
-
-		while (pq.size() > 1) {
-		    HuffNode left = pq.remove();
-		    HuffNode right = pq.remove();
-		    pq.add(new HuffNode(0, left.myWeight + right.myWeight, left, right)); 
+		else if ((myOptions & ADAPTIVE) != 0) {
+			HuffTuner tuner = new HuffTuner(HuffTuner.Objective.RATIO, Long.MAX_VALUE, myBudget);
+			HuffTuner.Metrics metrics = tuner.write(this, in, out, ctx);
+			if (myDebugLevel >= DEBUG_LOW) {
+				System.out.println(metrics);
+			}
+		}
+		else {
+			out.writeBits(BITS_PER_INT, HUFF_TREE);
+			writeBody(in, out, ctx);
 		}
-		
-		HuffNode head = pq.remove();
-		return head;
+		out.close();
 	}
-	
-	
-	private String[] makeFromTree(HuffNode root) {
-		String[] Codes = new String[ALPH_SIZE + 1];
-	    makecodes(root,"",Codes);
-	    return Codes;
+
+	/**
+	 * Write the tree header and coded bits for all of in, ending with
+	 * PSEUDO_EOF. Writes no magic number and does not close out, so
+	 * formats made of several coded sections can share it.
+	 * Resets ctx and reads in twice.
+	 */
+	void writeBody(BitInputStream in, BitOutputStream out, HuffContext ctx) {
+		ctx.reset();
+		long[] counts = readForCounts(in, ctx);
+		HuffTree tree = ctx.tree;
+		tree.fromCounts(counts);
+		tree.codes(ctx.codes, ctx.lengths);
+
+		tree.writeHeader(out);
+
+		in.reset();
+		writeCoded(in, out, ctx);
 	}
-	
-	private void makecodes(HuffNode root, String path, String[] Codes) {
-		if (root == null) return;
-		if (root.myLeft ==null && root.myRight==null) {
-			Codes[root.myValue]= path; 
-			return; 
-		}
-		makecodes(root.myLeft,path + "0", Codes); 
-		makecodes(root.myRight,path + "1", Codes);
+
+	/**
+	 * Write codes for all of in and PSEUDO_EOF using the codes already
+	 * in ctx, with no header. Used when several inputs share one tree.
+	 */
+	void writeCoded(BitInputStream in, BitOutputStream out, HuffContext ctx) {
+		writeCompressedBits(ctx, in, out);
 	}
-	
-	private void writeHeader(HuffNode root, BitOutputStream out) {
-		 
-		if(root.myLeft == null && root.myRight == null) {
-			
-			out.writeBits(1, 1);
-			out.writeBits(BITS_PER_WORD + 1, root.myValue);			
-			return;
-		}
-		out.writeBits(1, 0);
-		writeHeader(root.myLeft, out);
-		writeHeader(root.myRight, out);
+
+
+	private long[] readForCounts(BitInputStream in, HuffContext ctx) {
+		long[] counts = HuffEstimator.count(in, ctx.counts, ctx.bytes);
+		counts[PSEUDO_EOF] = 1;
+		return counts;
 	}
-	
-	private void writeCompressedBits(String[] codes, BitInputStream in, BitOutputStream out) {
+
+	private void writeCompressedBits(HuffContext ctx, BitInputStream in, BitOutputStream out) {
+		long[] codes = ctx.codes;
+		int[] lengths = ctx.lengths;
+		byte[] bytes = ctx.bytes;
 		while (true) {
-			int bits = in.readBits(BITS_PER_WORD);
-			if (bits == -1) break;
-			String code = codes[bits];
-				out.writeBits(code.length(), Integer.parseInt(code,2));
+			int read = in.readBytes(bytes, 0, bytes.length);
+			if (read == -1) break;
+			for (int k = 0; k < read; k++) {
+				int bits = bytes[k] & 0xff;
+				if (lengths[bits] == 0) {
+					throw new HuffException("no code for byte " + bits + ", input changed after counting");
+				}
+				out.writeBits(lengths[bits], codes[bits]);
+			}
+		}
+		// PSEUDO_EOF's code is empty only when it is the only symbol
+		if (lengths[PSEUDO_EOF] > 0) {
+			out.writeBits(lengths[PSEUDO_EOF], codes[PSEUDO_EOF]);
 		}
-		String code = codes[PSEUDO_EOF];
-		out.writeBits(code.length(), Integer.parseInt(code,2));
 	}
-//	public void compress(BitInputStream in, BitOutputStream out) {
-//		Count = new int[ALPH_SIZE]; //readForCounts helpercode
-//		Count[PSEUDO_EOF] = 1;
-//		while (true) {
-//			int bits = in.readBits(BITS_PER_WORD);
-//			if (bits == -1) break;
-//			Count[b] = Count[b] + 1;
-//		}
-//		//in.reset();
-//
-//		PriorityQueue<HuffNode> pq = new PriorityQueue<HuffNode>(); //makeTreefromCounts code
-//		for (int k = 0; k < ALPH_SIZE; k++) {
-//			if (Count[k] != 0) {
-//				pq.add(new HuffNode(k, Count[k], null, null));
-//			}
-//		}
-//		//pq.add(new HuffNode(PSEUDO_EOF, 0));
-//
-//		while (pq.size() > 1) {
-//			HuffNode left = pq.remove();
-//			HuffNode right = pq.remove();
-//			pq.add(new HuffNode(0, right.myWeight + left.myWeight, left, right));
-//		}
-//		HuffNode myHead = pq.remove();
-//		
-//		
-//		//next step
-//		String[] codings = makeFromTree(myHead);
-//		
-//		out.writeBits(BITS_PER_INT, HUFF_TREE);
-//		writeHeader(myHead, out);
-//		
-//		in.reset();
-//		writeCompressedBits(codings, in, out);
-//		out.close();
-//	}
-//	
-//	private String[] makeFromTree(HuffNode root) {
-//		String[] encodings = new String[ALPH_SIZE + 1];
-//	    codingHelper(root,"",encodings);
-//	    return encodings;
-//	    
-//
-//	}
-//	
-//	private void codingHelper(HuffNode root, String path, String[] encodings) {
-//		if (root == null) return;
-//		if (root.myLeft ==null && root.myRight==null) {
-//			encodings[root.myValue]= path; 
-//			return; 
-//		}
-//		
-//		codingHelper(root.myLeft,path + "0", encodings); 
-//		codingHelper(root.myRight,path + "1", encodings);
-//
-//	}
-//	
-//	private void writeHeader(HuffNode root, BitOutputStream out) {
-//		 
-//		if(root.myLeft == null && root.myRight == null) { // if leafnode then 
-//			
-//			out.writeBits(1, 1); // single bit of one
-//			out.writeBits(BITS_PER_WORD + 1, root.myValue); // write nine bits
-//			
-//			return;
-//			
-//		}
-//		
-//		out.writeBits(1, 0); // single bit of zero
-//		writeHeader(root.myLeft, out);
-//		writeHeader(root.myRight, out);
-//		
-//	}
-//	
-//	private void writeCompressedBits(String[] codings, BitInputStream in, BitOutputStream out) {
-//		while (true) {
-//			int bits = in.readBits(BITS_PER_WORD);
-//			if (bits == -1) break;
-//			String code = codings[bits];
-//				out.writeBits(code.length(), Integer.parseInt(code,2));
-//
-//		}
-//		String code = codings[PSEUDO_EOF];
-//		out.writeBits(code.length(), Integer.parseInt(code,2));
-//
-//	}
-//	
-//	private void extractCodes(HuffNode current, String path) {
-//		if ((current.myLeft == null) && (current.myRight == null)) {
-//			Codes[current.myValue] = path;
-//			return;
-//		}
-//		extractCodes(current.myLeft, path + 0);
-//		extractCodes(current.myLeft, path + 1);
-//	}
-//
-//	private void writeHeader(HuffNode current, BitOutputStream out) {
-//		if ((current.myLeft == null) && (current.myRight == null)) {
-//			out.writeBits(1, 1);
-//			out.writeBits(9, current.myValue);
-//		} else {
-//			out.writeBits(1, 0);
-//			writeHeader(current.myLeft, out);
-//			writeHeader(current.myRight, out);
-//		}
-//	}
-
-	
+
 	/**
 	 * Decompresses a file. Output file must be identical bit-by-bit to the
 	 * original.
@@ -249,57 +259,189 @@ public class HuffProcessor {
 	 * @param out
 	 *            Buffered bit stream writing to the output file.
 	 */
-	
 	public void decompress(BitInputStream in, BitOutputStream out) {
-		int bits = in.readBits(BITS_PER_INT);
-		if (bits != HUFF_TREE) {
-			throw new HuffException("illegal header starts with " + bits);			
+		decompress(in, out, HuffContext.local());
+	}
+
+	/**
+	 * Decompresses a file using caller-supplied working state. The file
+	 * may hold several members one after another, as made by append;
+	 * each is decoded in turn and their contents written to out.
+	 *
+	 * @param in
+	 *            Buffered bit stream of the file to be decompressed.
+	 * @param out
+	 *            Buffered bit stream writing to the output file.
+	 * @param ctx
+	 *            context used for this call only, reset before use
+	 */
+	public void decompress(BitInputStream in, BitOutputStream out, HuffContext ctx) {
+		if (limited()) {
+			out.setLimit(() -> outputLimit(in));
 		}
-		
-		HuffNode root = readTreeHeader(in);
-		readCompressedBits(root, in, out);
+		do {
+			decompressMember(in, out, ctx);
+			in.alignToByte();
+		} while (in.peekBits(BITS_PER_WORD) != -1);
 		out.close();
 	}
-	
-	private HuffNode readTreeHeader(BitInputStream in) {
-		int bits = in.readBits(1);
-		if (bits == -1) {
-			throw new HuffException("failed");
+
+	// one member, from its magic number to its PSEUDO_EOF
+	private void decompressMember(BitInputStream in, BitOutputStream out, HuffContext ctx) {
+		ctx.reset();
+		int bits = in.readBits(BITS_PER_INT);
+		if (bits == HUFF_ORDER1) {
+			ctx.order1().decompress(in, out);
+		}
+		else if (bits == HUFF_BLOCKS || bits == HUFF_ADAPTIVE) {
+			ctx.blocks().decompress(this, in, out, ctx, bits == HUFF_ADAPTIVE);
 		}
-		
-		if (bits == 0) {
-			HuffNode left = readTreeHeader(in);
-			HuffNode right = readTreeHeader(in); // is this it lol
-			return new HuffNode(0, 0, left, right);
+		else if (bits == HUFF_TREE) {
+			readBody(in, out, ctx);
 		}
 		else {
-			int value = in.readBits(BITS_PER_WORD+1);
-			return new HuffNode(value, 0, null, null);
+			throw new HuffException("illegal header starts with " + bits);
+		}
+	}
+
+	/**
+	 * Start decoding in a piece at a time, e.g. to read only the first
+	 * few KB of a large file. Nothing is read until the cursor is.
+	 * @return a cursor positioned at the start of the decoded data
+	 */
+	public HuffCursor open(BitInputStream in) {
+		return new HuffCursor(this, in, (myOptions & DECODE_TABLE) != 0);
+	}
+
+	/**
+	 * Compress in and add it to the end of target as a new member,
+	 * creating target if it does not exist. Earlier members are neither
+	 * read nor rewritten, so the cost depends only on in. Every
+	 * compressed file is a single member, so files made by compress can
+	 * be appended to, and concatenating compressed files with any tool
+	 * gives the same result. If compressing fails, target is cut back
+	 * to its old length (or removed if it is new) so no partial member
+	 * is left behind.
+	 */
+	public void append(BitInputStream in, File target) {
+		boolean existed = target.exists();
+		long start = target.length();
+		FileOutputStream stream;
+		try {
+			stream = new FileOutputStream(target, true);
+		}
+		catch (FileNotFoundException fnf) {
+			throw new RuntimeException(fnf);
+		}
+		try {
+			compress(in, new BitOutputStream(stream));
+		}
+		catch (RuntimeException | Error e) {
+			try {
+				stream.close();
+				if (existed) {
+					try (RandomAccessFile file = new RandomAccessFile(target, "rw")) {
+						file.setLength(start);
+					}
+				}
+				else {
+					target.delete();
+				}
+			}
+			catch (IOException io) {
+				e.addSuppressed(io);
+			}
+			throw e;
 		}
 	}
-	
-	private void readCompressedBits(HuffNode root, BitInputStream in, BitOutputStream out) {
-		
-		HuffNode current = root;
+
+	/**
+	 * Read one section written by writeBody, writing decoded bytes to
+	 * out. Reads no magic number and does not close out.
+	 * Resets ctx.
+	 */
+	void readBody(BitInputStream in, BitOutputStream out, HuffContext ctx) {
+		ctx.reset();
+		ctx.tree.readHeader(in);
+		readCoded(in, out, ctx);
+	}
+
+	/**
+	 * Decode codes up to PSEUDO_EOF with the tree already in ctx, the
+	 * counterpart of writeCoded.
+	 */
+	void readCoded(BitInputStream in, BitOutputStream out, HuffContext ctx) {
+		if ((myOptions & DECODE_TABLE) != 0) {
+			readTableBits(ctx.tree, ctx, in, out);
+		}
+		else {
+			readCompressedBits(ctx.tree, in, out);
+		}
+	}
+
+	private void readCompressedBits(HuffTree tree, BitInputStream in, BitOutputStream out) {
+
+		// only PSEUDO_EOF was written, with an empty code
+		int root = tree.root();
+		if (HuffTree.isLeaf(root)) return;
+
+		int current = root;
 		while (true) {
 			int bits = in.readBits(1);
 			if (bits == -1) {
 				throw new HuffException("bad input, no PSEUDO_EOF");
 			}
-			else {
-				if (bits == 0) current = current.myLeft;
-				else current = current.myRight;
-				
-				if (current.myLeft == null && current.myRight == null) {
-					if (current.myValue == PSEUDO_EOF) break;
-					else {
-						out.writeBits(BITS_PER_WORD, current.myValue);
-						current = root; // start back after leaf
-					}
-				}
+			current = tree.child(current, bits);
+
+			if (HuffTree.isLeaf(current)) {
+				int value = HuffTree.symbol(current);
+				if (value == PSEUDO_EOF) break;
+				out.writeBits(BITS_PER_WORD, value);
+				current = root; // start back after leaf
+			}
+		}
+	}
+
+	private void readTableBits(HuffTree tree, HuffContext ctx, BitInputStream in, BitOutputStream out) {
+
+		if (HuffTree.isLeaf(tree.root())) return;
+
+		int[] table = ctx.table;
+		HuffTable.build(tree, table);
+		while (true) {
+			int peek = in.peekBits(HuffTable.TABLE_BITS);
+			if (peek == -1) {
+				throw new HuffException("bad input, no PSEUDO_EOF");
+			}
+			int entry = table[peek];
+			int count = HuffTable.count(entry);
+			if (count == 0 && !HuffTable.isEOF(entry)) {
+				// code longer than the table, finish it one bit at a time
+				int value = readSymbol(tree, in);
+				if (value == PSEUDO_EOF) break;
+				out.writeBits(BITS_PER_WORD, value);
+				continue;
+			}
+			if (!in.skipBits(HuffTable.used(entry))) {
+				throw new HuffException("bad input, no PSEUDO_EOF");
+			}
+			if (count == 0) break;
+			out.writeBits(count * BITS_PER_WORD, HuffTable.symbols(entry));
+		}
+	}
+
+	/**
+	 * Walk tree one bit at a time to the next symbol.
+	 */
+	static int readSymbol(HuffTree tree, BitInputStream in) {
+		int current = tree.root();
+		while (!HuffTree.isLeaf(current)) {
+			int bits = in.readBits(1);
+			if (bits == -1) {
+				throw new HuffException("bad input, no PSEUDO_EOF");
 			}
+			current = tree.child(current, bits);
 		}
-//		in.close();
-//		out.close();
+		return HuffTree.symbol(current);
 	}
-}
\ No newline at end of file
+}
@@ -0,0 +1,153 @@
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/**
+ * Compresses a file in a single pass over its data by building the
+ * model from a stratified sample instead of counting every byte. The
+ * file is split into equal strata and one block is read from a random
+ * position in each stratum with positional reads. Unless the sample
+ * covers the whole file, every byte value missing from it gets a floor
+ * count of 1, so all input stays encodable. Counts are longs, scaled
+ * down by HuffTree when their total exceeds an int, so files of any
+ * size are modeled and reported correctly. Only the size the file had when
+ * it was opened is coded; bytes appended while compressing are not.
+ * A HuffSampler is immutable and may be shared between threads.
+ * <P>
+ * The output is an ordinary HUFF_TREE file. Actual counts are gathered
+ * while encoding, so the report can say how much larger the output is
+ * than the exact model would have made it, without a second pass.
+ */
+
+public class HuffSampler {
+
+	public static final int DEFAULT_BLOCK = 1 << 16;
+
+	/**
+	 * What one sampled compression did.
+	 */
+	public static class Report {
+		public final long size, sampled, bitsWritten, exactBits;
+
+		Report(long size, long sampled, long bitsWritten, long exactBits) {
+			this.size = size;
+			this.sampled = sampled;
+			this.bitsWritten = bitsWritten;
+			this.exactBits = exactBits;
+		}
+
+		/**
+		 * @return fraction by which the output exceeds the exact model's, e.g. 0.01 for 1%
+		 */
+		public double loss() {
+			return (double) bitsWritten / exactBits - 1;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("sampled %d of %d bytes, wrote %d bits, exact model %d bits, loss %.3f%%",
+					sampled, size, bitsWritten, exactBits, 100 * loss());
+		}
+	}
+
+	private final double myFraction;
+	private final int myBlock;
+	private final long mySeed;
+
+	/**
+	 * @param fraction is the part of the file to sample, on (0, 1]
+	 * @param block is the size of each sampled block in bytes
+	 * @param seed makes the choice of blocks repeatable: every compress
+	 * of the same file picks the same blocks
+	 */
+	public HuffSampler(double fraction, int block, long seed) {
+		if (fraction <= 0 || fraction > 1 || block < 1) {
+			throw new IllegalArgumentException("bad fraction " + fraction + " or block " + block);
+		}
+		myFraction = fraction;
+		myBlock = block;
+		mySeed = seed;
+	}
+
+	public HuffSampler(double fraction) {
+		this(fraction, DEFAULT_BLOCK, 0);
+	}
+
+	/**
+	 * Compress file to out in one pass using a sampled model. Closes out.
+	 * @return sizes of the sample, the output, and the exact model's output
+	 */
+	public Report compress(File file, BitOutputStream out) {
+		HuffContext ctx = HuffContext.local();
+		try (FileChannel channel = FileChannel.open(file.toPath())) {
+			long size = channel.size();
+			long[] counts = ctx.counts;
+			long sampled = sample(channel, size, counts, new Random(mySeed));
+			// a sample covering the whole file is exact and needs no floor
+			for (int k = 0; sampled < size && k < HuffProcessor.ALPH_SIZE; k++) {
+				if (counts[k] == 0) counts[k] = 1;
+			}
+			counts[HuffProcessor.PSEUDO_EOF] = 1;
+			ctx.tree.fromCounts(ctx.counts);
+			ctx.tree.codes(ctx.codes, ctx.lengths);
+
+			out.writeBits(HuffProcessor.BITS_PER_INT, HuffProcessor.HUFF_TREE);
+			ctx.tree.writeHeader(out);
+
+			long[] actual = new long[HuffProcessor.ALPH_SIZE];
+			ByteBuffer buffer = ByteBuffer.wrap(ctx.bytes);
+			long position = 0;
+			while (position < size) {
+				buffer.clear();
+				buffer.limit((int) Math.min(buffer.capacity(), size - position));
+				int read = channel.read(buffer, position);
+				if (read == -1) break;
+				position += read;
+				for (int k = 0; k < read; k++) {
+					int value = ctx.bytes[k] & 0xff;
+					actual[value]++;
+					out.writeBits(ctx.lengths[value], ctx.codes[value]);
+				}
+			}
+			if (ctx.lengths[HuffProcessor.PSEUDO_EOF] > 0) {
+				out.writeBits(ctx.lengths[HuffProcessor.PSEUDO_EOF], ctx.codes[HuffProcessor.PSEUDO_EOF]);
+			}
+			long written = out.bitsWritten();
+			out.close();
+
+			return new Report(size, sampled, written,
+					HuffEstimator.compressedBits(actual, HuffProcessor.BITS_PER_WORD));
+		}
+		catch (IOException io) {
+			throw new RuntimeException(io);
+		}
+	}
+
+	// add counts from one random block in each of the strata, never
+	// reading past a stratum's end, return bytes read
+	private long sample(FileChannel channel, long size, long[] counts, Random random) throws IOException {
+		long blocks = Math.max(1, (size + myBlock - 1) / myBlock);
+		long strata = Math.max(1, (long) Math.ceil(blocks * myFraction));
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(myBlock, Math.max(size, 1)));
+		long sampled = 0;
+		for (long s = 0; s < strata; s++) {
+			long start = s * size / strata;
+			long end = (s + 1) * size / strata;
+			long span = Math.max(0, end - start - buffer.capacity());
+			long position = start + (span == 0 ? 0 : (long) (random.nextDouble() * span));
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), end - position));
+			while (buffer.hasRemaining()) {
+				int read = channel.read(buffer, position + buffer.position());
+				if (read == -1) break;
+			}
+			byte[] bytes = buffer.array();
+			for (int k = 0; k < buffer.position(); k++) {
+				counts[bytes[k] & 0xff]++;
+			}
+			sampled += buffer.position();
+		}
+		return sampled;
+	}
+}
@@ -0,0 +1,136 @@
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Searches compressed files for a byte pattern without writing the
+ * decompressed data anywhere: decoded bytes stream through a
+ * Knuth-Morris-Pratt matcher in place of an output file, so memory use
+ * is the decoder's buffers plus the pattern. Works for every format
+ * HuffProcessor.decompress reads.
+ * <P>
+ * None of the formats carry an index of independently decodable
+ * blocks, so a single file is searched sequentially; many files are
+ * searched in parallel, one file per worker.
+ */
+
+public class HuffSearch {
+
+	private final byte[] myPattern;
+	private final int[] myFailure;
+	private final HuffProcessor myProcessor;
+
+	public HuffSearch(byte[] pattern) {
+		this(pattern, HuffBudget.global());
+	}
+
+	/**
+	 * @param pattern is the bytes to look for, at least one
+	 * @param budget limits decoding memory and so the number of files
+	 * searched at once
+	 */
+	public HuffSearch(byte[] pattern, HuffBudget budget) {
+		if (pattern.length == 0) {
+			throw new IllegalArgumentException("empty pattern");
+		}
+		myPattern = pattern.clone();
+		myFailure = new int[pattern.length];
+		for (int k = 1, match = 0; k < pattern.length; k++) {
+			while (match > 0 && pattern[k] != pattern[match]) {
+				match = myFailure[match - 1];
+			}
+			if (pattern[k] == pattern[match]) match++;
+			myFailure[k] = match;
+		}
+		myProcessor = new HuffProcessor(0, HuffProcessor.DECODE_TABLE, budget);
+	}
+
+	/**
+	 * Find every occurrence of the pattern in the decompressed contents
+	 * of in, overlapping occurrences included.
+	 * @return offsets in the decompressed data where matches start, in
+	 * increasing order
+	 */
+	public List<Long> search(BitInputStream in) {
+		Matcher matcher = new Matcher();
+		myProcessor.decompress(in, new BitOutputStream(matcher));
+		return matcher.myMatches;
+	}
+
+	public List<Long> search(File file) {
+		BitInputStream in = new BitInputStream(file);
+		try {
+			return search(in);
+		}
+		finally {
+			in.close();
+		}
+	}
+
+	/**
+	 * Search several files at once on a pool of threads.
+	 * @param threads is number of worker threads, reduced if the budget
+	 * cannot cover that many decoders at once
+	 * @return matches for each file, keyed in the order given
+	 * @throws HuffException if any file cannot be decompressed
+	 */
+	public Map<File, List<Long>> search(List<File> files, int threads) {
+		HuffBudget budget = myProcessor.budget();
+		ExecutorService pool = Executors.newFixedThreadPool(budget.workers(threads, HuffBlocks.DECODE_LEASE));
+		try {
+			Map<File, Future<List<Long>>> pending = new LinkedHashMap<>();
+			for (File file : files) {
+				pending.put(file, pool.submit(() -> search(file)));
+			}
+			Map<File, List<Long>> result = new LinkedHashMap<>();
+			for (Map.Entry<File, Future<List<Long>>> entry : pending.entrySet()) {
+				result.put(entry.getKey(), entry.getValue().get());
+			}
+			return result;
+		}
+		catch (ExecutionException e) {
+			if (e.getCause() instanceof RuntimeException) {
+				throw (RuntimeException) e.getCause();
+			}
+			throw new HuffException(e.getCause().toString());
+		}
+		catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new HuffException("search interrupted");
+		}
+		finally {
+			pool.shutdownNow();
+		}
+	}
+
+	// receives decoded bytes in whatever chunks the bit stream flushes
+	private class Matcher extends OutputStream {
+		private final List<Long> myMatches = new ArrayList<>();
+		private long myOffset;
+		private int myMatched;
+
+		@Override
+		public void write(int value) {
+			step((byte) value);
+		}
+
+		@Override
+		public void write(byte[] bytes, int offset, int length) {
+			for (int k = offset; k < offset + length; k++) {
+				step(bytes[k]);
+			}
+		}
+
+		private void step(byte value) {
+			while (myMatched > 0 && value != myPattern[myMatched]) {
+				myMatched = myFailure[myMatched - 1];
+			}
+			if (value == myPattern[myMatched]) myMatched++;
+			myOffset++;
+			if (myMatched == myPattern.length) {
+				myMatches.add(myOffset - myPattern.length);
+				myMatched = myFailure[myMatched - 1];
+			}
+		}
+	}
+}
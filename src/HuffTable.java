@@ -0,0 +1,84 @@
+/**
+ * Multi-symbol decode table. Each entry is indexed by the next
+ * TABLE_BITS bits of compressed input and records every whole symbol
+ * (up to MAX_SYMBOLS) those bits decode to, plus how many bits the
+ * symbols use. On skewed text most codes are a few bits long, so one
+ * lookup usually produces two or three bytes instead of one tree walk
+ * per byte.
+ * <P>
+ * Entries are packed into an int:
+ * <ul>
+ * <li>bits 0-23: the decoded bytes, first symbol most significant,
+ * right-aligned so they can be written with one writeBits call
+ * <li>bits 24-27: number of input bits the entry consumes
+ * <li>bits 28-29: number of bytes decoded (0 means the first code is
+ * longer than TABLE_BITS and the tree must be walked instead)
+ * <li>bit 30: the first code is PSEUDO_EOF
+ * </ul>
+ * PSEUDO_EOF is never combined with other symbols; an entry stops just
+ * before it so the next lookup sees it first.
+ */
+
+public class HuffTable {
+
+	public static final int TABLE_BITS = 12;
+	public static final int TABLE_SIZE = 1 << TABLE_BITS;
+	public static final int MAX_SYMBOLS = 3;
+
+	private static final int USED_SHIFT = 24;
+	private static final int COUNT_SHIFT = 28;
+	private static final int EOF_FLAG = 1 << 30;
+
+	/**
+	 * Fill table from tree. The root must not be a leaf, a lone
+	 * PSEUDO_EOF is handled by the caller.
+	 * @param tree is the decoding tree
+	 * @param table has at least TABLE_SIZE entries, all overwritten
+	 */
+	public static void build(HuffTree tree, int[] table) {
+		int root = tree.root();
+		for (int index = 0; index < TABLE_SIZE; index++) {
+			int current = root;
+			int symbols = 0, count = 0, used = 0;
+			int entry = 0;
+			for (int bit = TABLE_BITS - 1; bit >= 0; bit--) {
+				current = tree.child(current, (index >>> bit) & 1);
+				if (!HuffTree.isLeaf(current)) continue;
+
+				int consumed = TABLE_BITS - bit;
+				int value = HuffTree.symbol(current);
+				if (value == HuffProcessor.PSEUDO_EOF) {
+					if (count == 0) {
+						entry = EOF_FLAG | (consumed << USED_SHIFT);
+					}
+					break;
+				}
+				symbols = (symbols << HuffProcessor.BITS_PER_WORD) | value;
+				count++;
+				used = consumed;
+				current = root;
+				if (count == MAX_SYMBOLS) break;
+			}
+			if (count > 0) {
+				entry = symbols | (used << USED_SHIFT) | (count << COUNT_SHIFT);
+			}
+			table[index] = entry;
+		}
+	}
+
+	public static boolean isEOF(int entry) {
+		return (entry & EOF_FLAG) != 0;
+	}
+
+	public static int used(int entry) {
+		return (entry >>> USED_SHIFT) & 0xf;
+	}
+
+	public static int count(int entry) {
+		return (entry >>> COUNT_SHIFT) & 0x3;
+	}
+
+	public static int symbols(int entry) {
+		return entry & 0xffffff;
+	}
+}
@@ -0,0 +1,60 @@
+/**
+ * A reversible byte transform applied to a block before Huffman coding,
+ * meant to make the byte distribution more skewed. Transforms are
+ * stateless and may be shared between threads.
+ * <P>
+ * Each transform has an id recorded in the compressed header, and one
+ * int of side information (such as a stride, or the BWT primary index)
+ * that forward produces and inverse needs.
+ */
+
+public interface HuffTransform {
+
+	public static final int DELTA = 1;
+	public static final int RLE = 2;
+	public static final int BWT = 3;
+	public static final int MTF = 4;
+
+	/**
+	 * Longest data any stage of a block may hold, forward or inverse.
+	 * Forward output of a full block stays well under it (run-length
+	 * coding grows data by at most a quarter); inverse rejects anything
+	 * longer, so hostile input cannot make a stage expand without bound.
+	 */
+	public static final int MAX_DATA = 2 * HuffBlocks.BLOCK_SIZE;
+
+	/**
+	 * @return id recorded in the header for this transform
+	 */
+	int id();
+
+	/**
+	 * Transform the first length bytes of data.
+	 * @param param is where side information needed by inverse is stored, in param[0]
+	 * @return transformed bytes, exactly as long as the result
+	 */
+	byte[] forward(byte[] data, int length, int[] param);
+
+	/**
+	 * Undo forward.
+	 * @param param is the side information forward stored
+	 * @return the original bytes, exactly as long as the original
+	 * @throws HuffException if data could not have come from forward,
+	 * or the result would be longer than MAX_DATA
+	 */
+	byte[] inverse(byte[] data, int length, int param);
+
+	/**
+	 * Make the transform recorded in a header.
+	 * @throws HuffException for an unknown id
+	 */
+	static HuffTransform of(int id, int param) {
+		switch (id) {
+		case DELTA: return new DeltaTransform(param);
+		case RLE: return new RunLengthTransform();
+		case BWT: return new BurrowsWheelerTransform();
+		case MTF: return new MoveToFrontTransform();
+		default: throw new HuffException("unknown transform " + id);
+		}
+	}
+}
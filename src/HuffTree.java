@@ -0,0 +1,232 @@
+import java.util.*;
+
+/**
+ * Huffman tree stored as a single int array instead of node
+ * objects. Internal node i keeps its children at 2*i (left, bit 0) and
+ * 2*i+1 (right, bit 1). A child (or the root) is a reference: an
+ * internal node's index if it is non-negative, or ~symbol for a leaf.
+ * <P>
+ * All building and walking is iterative with fixed-size stacks, so a
+ * malformed header cannot overflow the call stack, and an instance is
+ * reused from file to file without allocating.
+ */
+
+public class HuffTree {
+
+	public static final int MAX_LEAVES = HuffProcessor.ALPH_SIZE + 1;
+	public static final int MAX_INTERNAL = MAX_LEAVES - 1;
+
+	/**
+	 * Longest code allowed, the most that fits the long codes compress
+	 * writes. Trees built from int counts never come close.
+	 */
+	public static final int MAX_DEPTH = 64;
+
+	private final int[] myChildren = new int[2 * MAX_INTERNAL];
+	private int myRoot;
+	private int myInternal;
+
+	// scratch space for building and walking
+	private final long[] mySorted = new long[MAX_LEAVES];
+	private final long[] myWeights = new long[MAX_INTERNAL];
+	private final int[] myStack = new int[MAX_LEAVES + MAX_INTERNAL];
+	private final long[] myCodeStack = new long[MAX_LEAVES + MAX_INTERNAL];
+	private final int[] myLengthStack = new int[MAX_LEAVES + MAX_INTERNAL];
+	private final boolean[] mySeen = new boolean[MAX_LEAVES];
+
+	public static boolean isLeaf(int ref) {
+		return ref < 0;
+	}
+
+	public static int symbol(int ref) {
+		return ~ref;
+	}
+
+	/**
+	 * @return reference to the root, a leaf when only one symbol is coded
+	 */
+	public int root() {
+		return myRoot;
+	}
+
+	/**
+	 * @return reference to the child of internal node reached by bit
+	 */
+	public int child(int node, int bit) {
+		return myChildren[2 * node + bit];
+	}
+
+	/**
+	 * Build a Huffman tree over the symbols with nonzero counts using
+	 * the two-queue method: leaves sorted by (count, symbol), merged
+	 * nodes taken in the order they are made.
+	 * @param counts has MAX_LEAVES entries, at least one nonzero
+	 */
+	public void fromCounts(int[] counts) {
+		int leaves = 0;
+		for (int k = 0; k < MAX_LEAVES; k++) {
+			if (counts[k] > 0) mySorted[leaves++] = ((long) counts[k] << 9) | k;
+		}
+		build(leaves);
+	}
+
+	/**
+	 * Like fromCounts(int[]) for counts of any size. If their total does
+	 * not fit an int they are divided down until it does, which also
+	 * keeps codes well within MAX_DEPTH; nonzero counts stay nonzero.
+	 * @param counts has MAX_LEAVES entries, at least one nonzero
+	 */
+	public void fromCounts(long[] counts) {
+		long total = 0;
+		for (int k = 0; k < MAX_LEAVES; k++) {
+			total += counts[k];
+		}
+		long divisor = total / (Integer.MAX_VALUE - MAX_LEAVES) + 1;
+		int leaves = 0;
+		for (int k = 0; k < MAX_LEAVES; k++) {
+			if (counts[k] > 0) mySorted[leaves++] = (Math.max(1, counts[k] / divisor) << 9) | k;
+		}
+		build(leaves);
+	}
+
+	// two-queue merge of the first leaves entries of mySorted, each a
+	// count shifted left 9 bits with its symbol below
+	private void build(int leaves) {
+		if (leaves == 0) {
+			throw new HuffException("no symbols to build a tree from");
+		}
+		Arrays.sort(mySorted, 0, leaves);
+		myInternal = 0;
+		if (leaves == 1) {
+			myRoot = ~(int) (mySorted[0] & 0x1ff);
+			return;
+		}
+
+		int leaf = 0, head = 0;
+		for (int node = 0; node < leaves - 1; node++) {
+			long weight = 0;
+			for (int side = 0; side < 2; side++) {
+				if (leaf < leaves && (head == node || (mySorted[leaf] >>> 9) <= myWeights[head])) {
+					weight += mySorted[leaf] >>> 9;
+					myChildren[2 * node + side] = ~(int) (mySorted[leaf++] & 0x1ff);
+				}
+				else {
+					weight += myWeights[head];
+					myChildren[2 * node + side] = head++;
+				}
+			}
+			myWeights[node] = weight;
+		}
+		myInternal = leaves - 1;
+		myRoot = myInternal - 1;
+	}
+
+	/**
+	 * Fill codes and lengths for every leaf of the tree; other entries
+	 * are left alone. A lone root leaf gets an empty code.
+	 * @param codes may be null when only lengths are wanted
+	 */
+	public void codes(long[] codes, int[] lengths) {
+		int top = 0;
+		myStack[top] = myRoot;
+		myCodeStack[top] = 0;
+		myLengthStack[top++] = 0;
+		while (top > 0) {
+			top--;
+			int ref = myStack[top];
+			long code = myCodeStack[top];
+			int length = myLengthStack[top];
+			if (isLeaf(ref)) {
+				if (codes != null) codes[symbol(ref)] = code;
+				lengths[symbol(ref)] = length;
+				continue;
+			}
+			for (int bit = 1; bit >= 0; bit--) {
+				myStack[top] = child(ref, bit);
+				myCodeStack[top] = (code << 1) | bit;
+				myLengthStack[top++] = length + 1;
+			}
+		}
+	}
+
+	/**
+	 * Write the tree in preorder: 0 for an internal node, 1 and the
+	 * 9-bit symbol for a leaf.
+	 */
+	public void writeHeader(BitOutputStream out) {
+		int top = 0;
+		myStack[top++] = myRoot;
+		while (top > 0) {
+			int ref = myStack[--top];
+			if (isLeaf(ref)) {
+				out.writeBits(1 + HuffProcessor.BITS_PER_WORD + 1,
+						(1 << (HuffProcessor.BITS_PER_WORD + 1)) | symbol(ref));
+			}
+			else {
+				out.writeBits(1, 0);
+				myStack[top++] = child(ref, 1);
+				myStack[top++] = child(ref, 0);
+			}
+		}
+	}
+
+	/**
+	 * Read a tree written by writeHeader, validating it as it is built
+	 * so untrusted input costs at most one pass over the header. Since
+	 * the header is a preorder walk, every internal node read gets both
+	 * children or the header ends early, so a tree that reads without
+	 * error is complete.
+	 * @throws HuffException if the input ends early, or the tree has
+	 * more internal nodes than any tree over MAX_LEAVES symbols, a leaf
+	 * above PSEUDO_EOF, a symbol twice, no PSEUDO_EOF, or a code longer
+	 * than MAX_DEPTH
+	 */
+	public void readHeader(BitInputStream in) {
+		// the stack holds slots still to fill: -1 for the root,
+		// otherwise an index into myChildren; myLengthStack holds
+		// the depth of each slot
+		Arrays.fill(mySeen, false);
+		int top = 0;
+		myStack[top] = -1;
+		myLengthStack[top++] = 0;
+		myInternal = 0;
+		while (top > 0) {
+			int slot = myStack[--top];
+			int depth = myLengthStack[top];
+			int bit = in.readBits(1);
+			if (bit == -1) {
+				throw new HuffException("bad input, tree header ends early");
+			}
+			int ref;
+			if (bit == 0) {
+				if (myInternal == MAX_INTERNAL) {
+					throw new HuffException("bad input, tree header has too many nodes");
+				}
+				if (depth == MAX_DEPTH) {
+					throw new HuffException("bad input, tree deeper than " + MAX_DEPTH);
+				}
+				ref = myInternal++;
+				myStack[top] = 2 * ref + 1;
+				myLengthStack[top++] = depth + 1;
+				myStack[top] = 2 * ref;
+				myLengthStack[top++] = depth + 1;
+			}
+			else {
+				int value = in.readBits(HuffProcessor.BITS_PER_WORD + 1);
+				if (value == -1) {
+					throw new HuffException("bad input, tree header ends early");
+				}
+				if (value > HuffProcessor.PSEUDO_EOF || mySeen[value]) {
+					throw new HuffException("bad input, tree has bad leaf " + value);
+				}
+				mySeen[value] = true;
+				ref = ~value;
+			}
+			if (slot == -1) myRoot = ref;
+			else myChildren[slot] = ref;
+		}
+		if (!mySeen[HuffProcessor.PSEUDO_EOF]) {
+			throw new HuffException("bad input, tree has no PSEUDO_EOF");
+		}
+	}
+}
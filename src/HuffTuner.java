@@ -0,0 +1,321 @@
+import java.io.*;
+import java.util.*;
+
+/**
+ * Adaptive block compression: for each block, tries a sample with
+ * every candidate configuration (a HuffBlocks transform chain with an
+ * order-0 or order-1 coder, or the block stored as it is) and picks one
+ * by the user's objective. Sizes come from frequency tables
+ * (HuffEstimator, HuffOrder1.estimate) rather than real encoding.
+ * Times, needed only by THROUGHPUT and LATENCY, are measured by really
+ * encoding the transformed sample and decoding it back, inverse
+ * transforms included, and are scaled up to the block.
+ * <P>
+ * Objectives:
+ * <ul>
+ * <li>RATIO: smallest estimated output
+ * <li>THROUGHPUT: fastest measured encode and decode among
+ * configurations that compress at all, stored when none does
+ * <li>LATENCY: smallest estimated output among configurations whose
+ * measured encode and decode time for the block is within the latency
+ * budget; stored always is
+ * </ul>
+ * Output is HUFF_ADAPTIVE, which records each block's choice in its
+ * header (see HuffBlocks) and is read by HuffProcessor.decompress like
+ * every other format. The TRANSFORM option is the same search limited
+ * to the order-0 coder, counting whole blocks, written as HUFF_BLOCKS.
+ * A HuffTuner is immutable and may be shared between threads; each
+ * compress returns its own Metrics.
+ */
+
+public class HuffTuner {
+
+	public enum Objective { RATIO, THROUGHPUT, LATENCY }
+
+	public static final int SAMPLE_SIZE = 1 << 16;
+
+	private static final int SAMPLE_PIECES = 4;
+	private static final String[] CODER_NAMES = { "order-0", "order-1", "stored" };
+	private static final String[] TRANSFORM_NAMES = { "", "delta", "rle", "bwt", "mtf" };
+
+	/**
+	 * The choice made by the TRANSFORM option.
+	 */
+	static final HuffTuner TRANSFORM = new HuffTuner(Objective.RATIO, Long.MAX_VALUE, null,
+			new int[] { HuffBlocks.ORDER_0 }, HuffBlocks.BLOCK_SIZE);
+
+	// where trial decodes are written
+	private static final OutputStream DISCARD = new OutputStream() {
+		@Override
+		public void write(int b) {
+		}
+
+		@Override
+		public void write(byte[] b, int off, int len) {
+		}
+	};
+
+	/**
+	 * What one compress chose and how it did.
+	 */
+	public static class Metrics {
+		public long blocks, bytesIn, bitsOut, trialNanos;
+		private final Map<String, Integer> myChoices = new TreeMap<>();
+
+		/**
+		 * @return number of blocks coded with each configuration, by name
+		 * such as "bwt+mtf/order-0"
+		 */
+		public Map<String, Integer> choices() {
+			return Collections.unmodifiableMap(myChoices);
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d blocks, %d -> %d bytes, trials %d ms, choices %s",
+					blocks, bytesIn, (bitsOut + 7) / 8, trialNanos / 1000000, myChoices);
+		}
+	}
+
+	private final Objective myObjective;
+	private final long myLatency;
+	private final HuffProcessor myProcessor;
+	private final int[] myCoders;
+	private final int mySampleSize;
+
+	public HuffTuner(Objective objective) {
+		this(objective, Long.MAX_VALUE, HuffBudget.global());
+	}
+
+	/**
+	 * @param objective is what to optimize
+	 * @param latencyNanos is the most measured time to encode and decode
+	 * one block, used by LATENCY
+	 * @param budget is where block memory is leased from
+	 */
+	public HuffTuner(Objective objective, long latencyNanos, HuffBudget budget) {
+		this(objective, latencyNanos, new HuffProcessor(0, 0, budget),
+				new int[] { HuffBlocks.ORDER_0, HuffBlocks.ORDER_1 }, SAMPLE_SIZE);
+	}
+
+	private HuffTuner(Objective objective, long latencyNanos, HuffProcessor processor,
+			int[] coders, int sampleSize) {
+		myObjective = objective;
+		myLatency = latencyNanos;
+		myProcessor = processor;
+		myCoders = coders;
+		mySampleSize = sampleSize;
+	}
+
+	/**
+	 * Compress in to out in HUFF_ADAPTIVE format. Closes out.
+	 * @return the choices made and sizes
+	 */
+	public Metrics compress(BitInputStream in, BitOutputStream out) {
+		Metrics metrics = write(myProcessor, in, out, HuffContext.local());
+		out.close();
+		return metrics;
+	}
+
+	/**
+	 * Write in to out in HUFF_ADAPTIVE format. Does not close out.
+	 */
+	Metrics write(HuffProcessor hp, BitInputStream in, BitOutputStream out, HuffContext ctx) {
+		Metrics metrics = new Metrics();
+		long start = out.bitsWritten();
+		ctx.blocks().compress(hp, in, out, ctx, this, metrics);
+		metrics.bitsOut = out.bitsWritten() - start;
+		return metrics;
+	}
+
+	/**
+	 * @return true if blocks record their coder, as in HUFF_ADAPTIVE;
+	 * only TRANSFORM writes HUFF_BLOCKS
+	 */
+	boolean adaptive() {
+		return this != TRANSFORM;
+	}
+
+	/**
+	 * Choose a configuration for one block from a sample of it, then
+	 * write the block with it.
+	 */
+	void writeBlock(HuffProcessor hp, byte[] data, int length, BitOutputStream out,
+			HuffContext ctx, Metrics metrics) {
+		long trialStart = System.nanoTime();
+		byte[] sample = sample(data, length);
+		int sampleLength = Math.min(length, sample.length);
+		double scale = sampleLength == 0 ? 1 : (double) length / sampleLength;
+		boolean timed = myObjective != Objective.RATIO;
+		boolean fastest = myObjective == Objective.THROUGHPUT;
+
+		// stored is the fallback when blocks record their coder
+		HuffTransform[] bestChain = {};
+		int bestCoder = HuffBlocks.STORED;
+		String bestName = CODER_NAMES[HuffBlocks.STORED];
+		byte[] best = data;
+		int bestLength = length;
+		int[] bestParams = {};
+		long storedBits = adaptive()
+				? HuffProcessor.BITS_PER_INT + (long) HuffProcessor.BITS_PER_WORD * length
+				: Long.MAX_VALUE;
+		long bestBits = storedBits;
+		long bestNanos = 0;
+
+		HuffTransform[] prevChain = {};
+		byte[][] prevOutputs = new byte[HuffBlocks.CANDIDATES.length][];
+		int[] prevParams = new int[HuffBlocks.CANDIDATES.length];
+		long[] prevNanos = new long[HuffBlocks.CANDIDATES.length];
+		String[] prevNames = new String[HuffBlocks.CANDIDATES.length];
+		long[] counts = new long[HuffProcessor.ALPH_SIZE + 1];
+		for (HuffTransform[] chain : HuffBlocks.CANDIDATES) {
+			byte[] current = sample;
+			int currentLength = sampleLength;
+			int[] params = new int[chain.length];
+			long nanos = 0;
+			String name = "";
+			int common = commonPrefix(chain, prevChain);
+			for (int k = 0; k < chain.length; k++) {
+				if (k < common) {
+					current = prevOutputs[k];
+					params[k] = prevParams[k];
+					nanos = prevNanos[k];
+					name = prevNames[k];
+				}
+				else {
+					int[] param = new int[1];
+					long start = System.nanoTime();
+					current = chain[k].forward(current, currentLength, param);
+					nanos += System.nanoTime() - start;
+					params[k] = param[0];
+					name += (k > 0 ? "+" : "") + TRANSFORM_NAMES[chain[k].id()]
+							+ (chain[k].id() == HuffTransform.DELTA ? param[0] : "");
+					prevOutputs[k] = current;
+					prevParams[k] = param[0];
+					prevNanos[k] = nanos;
+					prevNames[k] = name;
+				}
+				currentLength = current.length;
+			}
+			prevChain = chain;
+			if (timed) {
+				nanos += inverseNanos(chain, params, current);
+			}
+
+			for (int coder : myCoders) {
+				long bits;
+				if (coder == HuffBlocks.ORDER_1) {
+					bits = ctx.order1().estimate(current, currentLength, scale);
+				}
+				else {
+					Arrays.fill(counts, 0);
+					for (int k = 0; k < currentLength; k++) {
+						counts[current[k] & 0xff]++;
+					}
+					counts[HuffProcessor.PSEUDO_EOF] = 1;
+					bits = HuffEstimator.scaledBits(counts, scale) - HuffProcessor.BITS_PER_INT;
+				}
+				long total = timed
+						? Math.round((nanos + trialNanos(hp, current, currentLength, coder, ctx)) * scale)
+						: 0;
+
+				boolean better;
+				if (fastest) {
+					better = bits < storedBits && (bestCoder == HuffBlocks.STORED || total < bestNanos);
+				}
+				else {
+					better = bits < bestBits && (myObjective == Objective.RATIO || total <= myLatency);
+				}
+				if (better) {
+					bestChain = chain;
+					bestCoder = coder;
+					bestBits = bits;
+					bestNanos = total;
+					bestName = (name.isEmpty() ? "" : name + "/") + CODER_NAMES[coder];
+					best = current;
+					bestLength = currentLength;
+					bestParams = params;
+				}
+			}
+		}
+		metrics.trialNanos += System.nanoTime() - trialStart;
+
+		if (sample != data) {
+			// the chain was only tried on the sample, run it on the block
+			best = data;
+			bestLength = length;
+			bestParams = new int[bestChain.length];
+			int[] param = new int[1];
+			for (int k = 0; k < bestChain.length; k++) {
+				best = bestChain[k].forward(best, bestLength, param);
+				bestLength = best.length;
+				bestParams[k] = param[0];
+			}
+		}
+		ctx.blocks().writeBlock(hp, bestChain, bestParams, best, bestLength, bestCoder, out, ctx, adaptive());
+		metrics.blocks++;
+		metrics.bytesIn += length;
+		metrics.myChoices.merge(bestName, 1, Integer::sum);
+	}
+
+	// nanoseconds to undo chain on data, its output
+	private static long inverseNanos(HuffTransform[] chain, int[] params, byte[] data) {
+		long start = System.nanoTime();
+		for (int k = chain.length - 1; k >= 0; k--) {
+			data = chain[k].inverse(data, data.length, params[k]);
+		}
+		return System.nanoTime() - start;
+	}
+
+	// nanoseconds to code the first length bytes of data with coder and
+	// decode the result
+	private static long trialNanos(HuffProcessor hp, byte[] data, int length, int coder, HuffContext ctx) {
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+		BitOutputStream trial = new BitOutputStream(bytes, ctx.blockWrite);
+		BitInputStream in = new BitInputStream(new ByteArrayInputStream(data, 0, length), 0, ctx.blockRead);
+		long start = System.nanoTime();
+		if (coder == HuffBlocks.ORDER_1) {
+			ctx.order1().writeBody(in, trial);
+		}
+		else {
+			hp.writeBody(in, trial, ctx);
+		}
+		trial.close();
+		long nanos = System.nanoTime() - start;
+
+		BitInputStream coded = new BitInputStream(new ByteArrayInputStream(bytes.toByteArray()), 0, ctx.blockRead);
+		BitOutputStream decoded = new BitOutputStream(DISCARD, ctx.blockWrite);
+		start = System.nanoTime();
+		if (coder == HuffBlocks.ORDER_1) {
+			ctx.order1().decompress(coded, decoded);
+		}
+		else {
+			hp.readBody(coded, decoded, ctx);
+		}
+		decoded.close();
+		return nanos + System.nanoTime() - start;
+	}
+
+	// number of leading transforms two chains share; stage outputs of
+	// one chain are reused for the other only within it
+	private static int commonPrefix(HuffTransform[] a, HuffTransform[] b) {
+		int k = 0;
+		while (k < a.length && k < b.length && a[k] == b[k]) k++;
+		return k;
+	}
+
+	// the whole block if it is small, else SAMPLE_PIECES evenly spaced
+	// runs adding up to the sample size
+	private byte[] sample(byte[] data, int length) {
+		if (length <= mySampleSize) {
+			return data;
+		}
+		byte[] sample = new byte[mySampleSize];
+		int piece = mySampleSize / SAMPLE_PIECES;
+		for (int p = 0; p < SAMPLE_PIECES; p++) {
+			long start = (long) p * (length - piece) / (SAMPLE_PIECES - 1);
+			System.arraycopy(data, (int) start, sample, p * piece, piece);
+		}
+		return sample;
+	}
+}
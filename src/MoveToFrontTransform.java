@@ -0,0 +1,52 @@
+/**
+ * Move-to-front coding: each byte is replaced by its position in a
+ * list of recently seen bytes, and then moved to the front of the list.
+ * After a Burrows-Wheeler transform this turns runs of similar context
+ * into runs of small numbers, mostly zeros.
+ */
+
+public class MoveToFrontTransform implements HuffTransform {
+
+	@Override
+	public int id() {
+		return MTF;
+	}
+
+	@Override
+	public byte[] forward(byte[] data, int length, int[] param) {
+		byte[] order = initial();
+		byte[] result = new byte[length];
+		for (int k = 0; k < length; k++) {
+			byte value = data[k];
+			int index = 0;
+			while (order[index] != value) index++;
+			System.arraycopy(order, 0, order, 1, index);
+			order[0] = value;
+			result[k] = (byte) index;
+		}
+		param[0] = 0;
+		return result;
+	}
+
+	@Override
+	public byte[] inverse(byte[] data, int length, int param) {
+		byte[] order = initial();
+		byte[] result = new byte[length];
+		for (int k = 0; k < length; k++) {
+			int index = data[k] & 0xff;
+			byte value = order[index];
+			System.arraycopy(order, 0, order, 1, index);
+			order[0] = value;
+			result[k] = value;
+		}
+		return result;
+	}
+
+	private static byte[] initial() {
+		byte[] order = new byte[HuffProcessor.ALPH_SIZE];
+		for (int k = 0; k < order.length; k++) {
+			order[k] = (byte) k;
+		}
+		return order;
+	}
+}
@@ -0,0 +1,84 @@
+import java.io.*;
+
+/**
+ * Run-length encoding: a run of four equal bytes is followed by one
+ * byte counting how many more copies (0-255) follow. Shorter runs are
+ * copied as they are, so ordinary data grows very little.
+ */
+
+public class RunLengthTransform implements HuffTransform {
+
+	private static final int RUN = 4;
+	private static final int MAX_EXTRA = 255;
+
+	@Override
+	public int id() {
+		return RLE;
+	}
+
+	@Override
+	public byte[] forward(byte[] data, int length, int[] param) {
+		ByteArrayOutputStream result = new ByteArrayOutputStream(length + length / 64 + 16);
+		int k = 0;
+		while (k < length) {
+			int run = 1;
+			while (k + run < length && data[k + run] == data[k] && run < RUN + MAX_EXTRA) {
+				run++;
+			}
+			int copies = Math.min(run, RUN);
+			for (int j = 0; j < copies; j++) {
+				result.write(data[k]);
+			}
+			if (run >= RUN) {
+				result.write(run - RUN);
+			}
+			k += run;
+		}
+		param[0] = 0;
+		return result.toByteArray();
+	}
+
+	@Override
+	public byte[] inverse(byte[] data, int length, int param) {
+		// size the result first, which also bounds it before allocating
+		long size = 0;
+		int last = -1, run = 0;
+		for (int k = 0; k < length; k++) {
+			int value = data[k] & 0xff;
+			size++;
+			run = value == last ? run + 1 : 1;
+			last = value;
+			if (run == RUN) {
+				if (k + 1 == length) {
+					throw new HuffException("run-length data ends before a count");
+				}
+				size += data[++k] & 0xff;
+				last = -1;
+				run = 0;
+			}
+		}
+		if (size > MAX_DATA) {
+			throw new HuffException("run-length data expands past " + MAX_DATA + " bytes");
+		}
+
+		byte[] result = new byte[(int) size];
+		int out = 0;
+		last = -1;
+		run = 0;
+		for (int k = 0; k < length; k++) {
+			byte value = data[k];
+			result[out++] = value;
+			run = (value & 0xff) == last ? run + 1 : 1;
+			last = value & 0xff;
+			if (run == RUN) {
+				int extra = data[++k] & 0xff;
+				for (int j = 0; j < extra; j++) {
+					result[out++] = value;
+				}
+				last = -1;
+				run = 0;
+			}
+		}
+		return result;
+	}
+}
@@ -0,0 +1,134 @@
+import java.util.*;
+
+/**
+ * Linear-time suffix array construction by induced sorting (SA-IS,
+ * Nong, Zhang and Chan). Used by BurrowsWheelerTransform.
+ */
+
+public class SuffixArray {
+
+	/**
+	 * Sort the suffixes of the first length bytes of data, as if data
+	 * were followed by a sentinel smaller than any byte.
+	 * @return array of length + 1 suffix start positions in sorted
+	 * order; element 0 is always length, the sentinel alone
+	 */
+	public static int[] build(byte[] data, int length) {
+		int[] s = new int[length + 1];
+		for (int k = 0; k < length; k++) {
+			s[k] = (data[k] & 0xff) + 1;
+		}
+		int[] sa = new int[length + 1];
+		sais(s, sa, length + 1, HuffProcessor.ALPH_SIZE + 1);
+		return sa;
+	}
+
+	// s[n-1] must be a unique smallest character 0, others on [1, k)
+	private static void sais(int[] s, int[] sa, int n, int k) {
+		if (n == 1) {
+			sa[0] = 0;
+			return;
+		}
+		boolean[] stype = new boolean[n];
+		stype[n - 1] = true;
+		for (int i = n - 2; i >= 0; i--) {
+			stype[i] = s[i] < s[i + 1] || (s[i] == s[i + 1] && stype[i + 1]);
+		}
+		int[] bucket = new int[k];
+
+		// sort LMS substrings by inducing from their unsorted positions
+		bucketEnds(s, bucket, n, k);
+		Arrays.fill(sa, 0, n, -1);
+		for (int i = 1; i < n; i++) {
+			if (isLMS(stype, i)) sa[--bucket[s[i]]] = i;
+		}
+		induce(s, sa, stype, bucket, n, k);
+
+		// name LMS substrings, equal substrings get equal names
+		int n1 = 0;
+		for (int i = 0; i < n; i++) {
+			if (isLMS(stype, sa[i])) sa[n1++] = sa[i];
+		}
+		Arrays.fill(sa, n1, n, -1);
+		int name = 0, prev = -1;
+		for (int i = 0; i < n1; i++) {
+			int pos = sa[i];
+			boolean diff = false;
+			for (int d = 0; d < n; d++) {
+				if (prev == -1 || s[pos + d] != s[prev + d] || stype[pos + d] != stype[prev + d]) {
+					diff = true;
+					break;
+				}
+				if (d > 0 && (isLMS(stype, pos + d) || isLMS(stype, prev + d))) break;
+			}
+			if (diff) {
+				name++;
+				prev = pos;
+			}
+			sa[n1 + pos / 2] = name - 1;
+		}
+		for (int i = n - 1, j = n - 1; i >= n1; i--) {
+			if (sa[i] >= 0) sa[j--] = sa[i];
+		}
+
+		// sort the reduced string, recursing only if names repeat
+		int[] s1 = Arrays.copyOfRange(sa, n - n1, n);
+		int[] sa1 = new int[n1];
+		if (name < n1) {
+			sais(s1, sa1, n1, name);
+		}
+		else {
+			for (int i = 0; i < n1; i++) sa1[s1[i]] = i;
+		}
+
+		// induce the full order from the sorted LMS suffixes
+		for (int i = 1, j = 0; i < n; i++) {
+			if (isLMS(stype, i)) s1[j++] = i;
+		}
+		for (int i = 0; i < n1; i++) {
+			sa1[i] = s1[sa1[i]];
+		}
+		bucketEnds(s, bucket, n, k);
+		Arrays.fill(sa, 0, n, -1);
+		for (int i = n1 - 1; i >= 0; i--) {
+			int j = sa1[i];
+			sa[--bucket[s[j]]] = j;
+		}
+		induce(s, sa, stype, bucket, n, k);
+	}
+
+	private static void induce(int[] s, int[] sa, boolean[] stype, int[] bucket, int n, int k) {
+		bucketStarts(s, bucket, n, k);
+		for (int i = 0; i < n; i++) {
+			int j = sa[i] - 1;
+			if (j >= 0 && !stype[j]) sa[bucket[s[j]]++] = j;
+		}
+		bucketEnds(s, bucket, n, k);
+		for (int i = n - 1; i >= 0; i--) {
+			int j = sa[i] - 1;
+			if (j >= 0 && stype[j]) sa[--bucket[s[j]]] = j;
+		}
+	}
+
+	private static boolean isLMS(boolean[] stype, int i) {
+		return i > 0 && stype[i] && !stype[i - 1];
+	}
+
+	private static void bucketStarts(int[] s, int[] bucket, int n, int k) {
+		Arrays.fill(bucket, 0);
+		for (int i = 0; i < n; i++) bucket[s[i]]++;
+		for (int c = 0, sum = 0; c < k; c++) {
+			sum += bucket[c];
+			bucket[c] = sum - bucket[c];
+		}
+	}
+
+	private static void bucketEnds(int[] s, int[] bucket, int n, int k) {
+		Arrays.fill(bucket, 0);
+		for (int i = 0; i < n; i++) bucket[s[i]]++;
+		for (int c = 0, sum = 0; c < k; c++) {
+			sum += bucket[c];
+			bucket[c] = sum;
+		}
+	}
+}